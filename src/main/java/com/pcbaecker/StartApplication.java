@@ -1,17 +1,21 @@
 package com.pcbaecker;
 
+import com.pcbaecker.config.AppRuntimeHints;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.ImportRuntimeHints;
 import org.springframework.data.jpa.repository.config.EnableJpaAuditing;
 import org.springframework.security.config.annotation.method.configuration.EnableMethodSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.session.data.redis.config.annotation.web.http.EnableRedisIndexedHttpSession;
 
-@EnableMethodSecurity(securedEnabled = true)
+// @Secured is handled by the RoleAuthorizationManager registered in SecurityConfig
+@EnableMethodSecurity
 @EnableWebSecurity
 @EnableJpaAuditing
 @EnableRedisIndexedHttpSession
 @SpringBootApplication
+@ImportRuntimeHints(AppRuntimeHints.class)
 public class StartApplication {
 
     public static void main(String[] args) {
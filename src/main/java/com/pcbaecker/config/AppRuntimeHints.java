@@ -0,0 +1,70 @@
+package com.pcbaecker.config;
+
+import com.pcbaecker.config.security.RoleAuthenticationToken;
+import com.pcbaecker.config.security.SessionRestController;
+import com.pcbaecker.config.security.UserHasRolePublisher;
+import com.pcbaecker.config.security.UserProvisioning;
+import com.pcbaecker.domain.books.Book;
+import com.pcbaecker.domain.books.BookRestController;
+import com.pcbaecker.domain.books.BookUsercase;
+import com.pcbaecker.domain.books.CatalogVersion;
+import com.pcbaecker.domain.users.User;
+import com.pcbaecker.domain.users.UserRole;
+import org.springframework.aot.hint.BindingReflectionHintsRegistrar;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+import org.springframework.aot.hint.TypeReference;
+import org.springframework.security.access.annotation.Secured;
+import org.springframework.security.authentication.AbstractAuthenticationToken;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextImpl;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.stream.Stream;
+
+// A native image only knows the reflection, serialization and resources it was told about at build time.
+// Spring AOT covers the beans, the JPA entities and the controller signatures, this adds what it cannot see.
+public class AppRuntimeHints implements RuntimeHintsRegistrar {
+
+    @Override
+    public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+        // Jackson goes through the Lombok generated accessors and the record components
+        new BindingReflectionHintsRegistrar().registerReflectionHints(hints.reflection(),
+                User.class,
+                Book.class,
+                CatalogVersion.class,
+                SessionRestController.LoginRequest.class,
+                SessionRestController.SessionInfo.class,
+                SessionRestController.CreateUserRequest.class,
+                UserProvisioning.ProvisionResult.class,
+                BookRestController.CreateBookRequest.class,
+                BookRestController.UpdateBookRequest.class,
+                BookUsercase.ImportReport.class,
+                BookUsercase.ImportError.class);
+
+        // Sessions written with app.session.serializer=jdk, and the sampled size comparison of the compact
+        // serializer, hold the whole security context with the User entity as principal
+        Stream.of(SecurityContextImpl.class, RoleAuthenticationToken.class, UsernamePasswordAuthenticationToken.class,
+                        AbstractAuthenticationToken.class, SimpleGrantedAuthority.class, User.class, UserRole.class,
+                        Enum.class, ArrayList.class, LocalDateTime.class, String.class, Number.class, Long.class, Integer.class)
+                .forEach(type -> hints.serialization().registerType(type));
+        Stream.of("java.util.Collections$UnmodifiableCollection", "java.util.Collections$UnmodifiableList",
+                        "java.util.Collections$UnmodifiableRandomAccessList", "java.util.ImmutableCollections$ListN",
+                        "java.util.CollSer", "java.time.Ser",
+                        // The roles of a User loaded by Hibernate
+                        "org.hibernate.collection.spi.AbstractPersistentCollection", "org.hibernate.collection.spi.PersistentBag")
+                .forEach(type -> hints.serialization().registerType(TypeReference.of(type)));
+
+        // The RoleAuthorizationManager reads @UserHasRolePublisher as a merged, synthesized @Secured
+        hints.reflection().registerType(UserHasRolePublisher.class);
+        hints.proxies().registerJdkProxy(Secured.class);
+
+        // The second-level cache provider and its configuration are looked up by name
+        hints.reflection().registerType(TypeReference.of("com.github.benmanes.caffeine.jcache.spi.CaffeineCachingProvider"),
+                MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS);
+        hints.resources().registerPattern("hibernate-cache.conf");
+    }
+}
@@ -0,0 +1,59 @@
+package com.pcbaecker.config;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Reads NDJSON up to the first line that is not valid JSON or does not map to the type, instead of throwing.
+// The rows before it are still handed out, afterwards isInvalid() tells if and rowsRead() where the input stopped.
+public final class UntilInvalidJson<T> implements Iterator<T> {
+
+    private final MappingIterator<T> parser;
+    private T next;
+    private boolean invalid;
+    private int rowsRead;
+
+    public UntilInvalidJson(MappingIterator<T> parser) {
+        this.parser = parser;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (this.next == null && !this.invalid) {
+            try {
+                if (this.parser.hasNextValue()) {
+                    this.next = this.parser.nextValue();
+                    this.invalid = this.next == null;
+                }
+            } catch (JsonProcessingException e) {
+                this.invalid = true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return this.next != null;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T value = this.next;
+        this.next = null;
+        this.rowsRead++;
+        return value;
+    }
+
+    public boolean isInvalid() {
+        return this.invalid;
+    }
+
+    public int rowsRead() {
+        return this.rowsRead;
+    }
+}
@@ -0,0 +1,34 @@
+package com.pcbaecker.config.metrics;
+
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+
+import java.util.function.Supplier;
+
+// Every phase of a login is its own observation, which becomes the login.phase timer tagged with the phase.
+// Failed phases, like a wrong password, are tagged with the exception.
+public final class LoginPhases {
+
+    public static final String USER_LOOKUP = "user-lookup";
+    public static final String PASSWORD_MATCH = "password-match";
+    public static final String SESSION_CREATE = "session-create";
+    public static final String SESSION_LIMIT = "session-limit";
+    public static final String SESSION_SAVE = "session-save";
+
+    private LoginPhases() {
+    }
+
+    public static <T> T observe(ObservationRegistry registry, String phase, Supplier<T> work) {
+        return observation(registry, phase).observe(work);
+    }
+
+    public static void observe(ObservationRegistry registry, String phase, Runnable work) {
+        observation(registry, phase).observe(work);
+    }
+
+    private static Observation observation(ObservationRegistry registry, String phase) {
+        return Observation.createNotStarted("login.phase", registry)
+                .contextualName("login " + phase)
+                .lowCardinalityKeyValue("phase", phase);
+    }
+}
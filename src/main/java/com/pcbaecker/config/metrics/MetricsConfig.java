@@ -0,0 +1,80 @@
+package com.pcbaecker.config.metrics;
+
+import io.lettuce.core.event.command.CommandListener;
+import io.lettuce.core.event.command.CommandStartedEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import net.ttddyy.dsproxy.support.ProxyDataSourceBuilder;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.session.web.http.SessionRepositoryFilter;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    FilterRegistrationBean<RequestMetricsFilter> requestMetricsFilter(MeterRegistry meterRegistry) {
+        FilterRegistrationBean<RequestMetricsFilter> registration = new FilterRegistrationBean<>(new RequestMetricsFilter(meterRegistry));
+        registration.setOrder(SessionRepositoryFilter.DEFAULT_ORDER - 1);
+        return registration;
+    }
+
+    // Lettuce tells command listeners about a command on the thread that sends it, which for our requests is the
+    // request thread. The listener has to be added before the first connection is opened.
+    @Bean
+    static BeanPostProcessor redisCommandCountingPostProcessor() {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof LettuceConnectionFactory connectionFactory) {
+                    connectionFactory.getRequiredNativeClient().addListener(new CommandListener() {
+                        @Override
+                        public void commandStarted(CommandStartedEvent event) {
+                            RequestMetrics.redisCommand();
+                        }
+                    });
+                }
+                return bean;
+            }
+        };
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "app.jdbc.profiler.enabled", havingValue = "true", matchIfMissing = true)
+    StatementProfiler statementProfiler(
+            MeterRegistry meterRegistry,
+            @Value("${app.jdbc.profiler.slow-threshold:PT0.2S}") Duration slowThreshold,
+            @Value("${app.jdbc.profiler.sample-rate:0.001}") double sampleRate,
+            @Value("${app.jdbc.profiler.redact-parameters:true}") boolean redactParameters) {
+        return new StatementProfiler(meterRegistry, slowThreshold, sampleRate, redactParameters);
+    }
+
+    // Every connection handed out by the DataSource, to Hibernate and to plain JDBC alike, reports its statements
+    // to the profiler. The profiler is looked up lazily, a static post processor must not pull in the registry early.
+    @Bean
+    static BeanPostProcessor statementProfilingPostProcessor(ObjectProvider<StatementProfiler> statementProfiler) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof DataSource dataSource) {
+                    StatementProfiler profiler = statementProfiler.getIfAvailable();
+                    if (profiler != null) {
+                        return ProxyDataSourceBuilder.create(dataSource)
+                                .name(beanName)
+                                .listener(profiler)
+                                .build();
+                    }
+                }
+                return bean;
+            }
+        };
+    }
+}
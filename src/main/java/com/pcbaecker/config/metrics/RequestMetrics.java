@@ -0,0 +1,100 @@
+package com.pcbaecker.config.metrics;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.web.servlet.HandlerMapping;
+
+// What a request costs outside of its own code, collected on the request thread while the request runs.
+// Code that runs without a request, like the background flushers, finds no current metrics and is not counted.
+public final class RequestMetrics {
+
+    private static final ThreadLocal<RequestMetrics> CURRENT = new ThreadLocal<>();
+
+    private final HttpServletRequest request;
+    private int redisCommands;
+    private int jdbcStatements;
+    private long jdbcNanos;
+    private boolean authenticated;
+    private boolean login;
+
+    private RequestMetrics(HttpServletRequest request) {
+        this.request = request;
+    }
+
+    static RequestMetrics start(HttpServletRequest request) {
+        RequestMetrics metrics = new RequestMetrics(request);
+        CURRENT.set(metrics);
+        return metrics;
+    }
+
+    static void end() {
+        CURRENT.remove();
+    }
+
+    static void redisCommand() {
+        RequestMetrics metrics = CURRENT.get();
+        if (metrics != null) {
+            metrics.redisCommands++;
+        }
+    }
+
+    static RequestMetrics current() {
+        return CURRENT.get();
+    }
+
+    void jdbcStatement(long nanos) {
+        this.jdbcStatements++;
+        this.jdbcNanos += nanos;
+    }
+
+    // The mapped pattern, like /books/{id}, is known once the handler was found
+    String uri() {
+        Object pattern = this.request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        return pattern != null ? pattern.toString() : "UNKNOWN";
+    }
+
+    String requestLine() {
+        return this.request.getMethod() + " " + this.request.getRequestURI();
+    }
+
+    // The request came with a session that holds an authentication
+    public static void markAuthenticated() {
+        RequestMetrics metrics = CURRENT.get();
+        if (metrics != null) {
+            metrics.authenticated = true;
+        }
+    }
+
+    // The request logs in, so the session it saves at the end belongs to the login
+    public static void markLogin() {
+        RequestMetrics metrics = CURRENT.get();
+        if (metrics != null) {
+            metrics.login = true;
+        }
+    }
+
+    // Only the first save after the login writes the session, later ones at the end of the request find no changes
+    public static boolean takeLogin() {
+        RequestMetrics metrics = CURRENT.get();
+        if (metrics == null || !metrics.login) {
+            return false;
+        }
+        metrics.login = false;
+        return true;
+    }
+
+    int redisCommands() {
+        return this.redisCommands;
+    }
+
+    int jdbcStatements() {
+        return this.jdbcStatements;
+    }
+
+    long jdbcNanos() {
+        return this.jdbcNanos;
+    }
+
+    boolean authenticated() {
+        return this.authenticated;
+    }
+}
@@ -0,0 +1,54 @@
+package com.pcbaecker.config.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Runs in front of the session filter, so the session load and save of the request are part of what it counts.
+// Records how many Redis commands every authenticated request sent, and how many SQL statements every request
+// ran and how long they took, per endpoint.
+public class RequestMetricsFilter extends OncePerRequestFilter {
+
+    private final MeterRegistry meterRegistry;
+
+    public RequestMetricsFilter(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        RequestMetrics metrics = RequestMetrics.start(request);
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            RequestMetrics.end();
+            final String uri = metrics.uri();
+            if (metrics.authenticated()) {
+                DistributionSummary.builder("request.redis.commands")
+                        .description("Redis commands sent while handling an authenticated request, pipelined ones included")
+                        .tag("uri", uri)
+                        .register(this.meterRegistry)
+                        .record(metrics.redisCommands());
+            }
+            DistributionSummary.builder("request.jdbc.statements")
+                    .description("SQL statements run while handling a request, a batch counts once")
+                    .tag("uri", uri)
+                    .register(this.meterRegistry)
+                    .record(metrics.jdbcStatements());
+            Timer.builder("request.jdbc.time")
+                    .description("Time spent in SQL statements while handling a request")
+                    .tag("uri", uri)
+                    .register(this.meterRegistry)
+                    .record(metrics.jdbcNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.pcbaecker.config.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import net.ttddyy.dsproxy.ExecutionInfo;
+import net.ttddyy.dsproxy.QueryInfo;
+import net.ttddyy.dsproxy.listener.QueryExecutionListener;
+import net.ttddyy.dsproxy.proxy.ParameterSetOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.StringJoiner;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Sees every SQL statement that goes through the DataSource. It times them per endpoint and statement kind,
+// adds them to the request they belong to, and logs the slow ones. Fast statements are only logged for a sample,
+// so the profiler can stay on in production. Bind parameters are logged as their types unless redaction is off.
+public class StatementProfiler implements QueryExecutionListener {
+
+    private static final Logger log = LoggerFactory.getLogger(StatementProfiler.class);
+
+    private static final String STARTED_AT = "profiler.startedAt";
+    // Statements that are not part of a request, like the ones of background work
+    private static final String NO_REQUEST = "none";
+
+    private final MeterRegistry meterRegistry;
+    private final long slowThresholdNanos;
+    private final double sampleRate;
+    private final boolean redactParameters;
+
+    public StatementProfiler(MeterRegistry meterRegistry, Duration slowThreshold, double sampleRate, boolean redactParameters) {
+        this.meterRegistry = meterRegistry;
+        this.slowThresholdNanos = slowThreshold.toNanos();
+        this.sampleRate = sampleRate;
+        this.redactParameters = redactParameters;
+    }
+
+    @Override
+    public void beforeQuery(ExecutionInfo execInfo, List<QueryInfo> queryInfoList) {
+        execInfo.addCustomValue(STARTED_AT, System.nanoTime());
+    }
+
+    @Override
+    public void afterQuery(ExecutionInfo execInfo, List<QueryInfo> queryInfoList) {
+        Long startedAt = execInfo.getCustomValue(STARTED_AT, Long.class);
+        if (startedAt == null || queryInfoList.isEmpty()) {
+            return;
+        }
+        final long nanos = System.nanoTime() - startedAt;
+        RequestMetrics request = RequestMetrics.current();
+        if (request != null) {
+            request.jdbcStatement(nanos);
+        }
+        final String sql = queryInfoList.get(0).getQuery();
+        Timer.builder("jdbc.statement")
+                .description("SQL statements by the endpoint that ran them")
+                .tag("uri", request != null ? request.uri() : NO_REQUEST)
+                .tag("kind", kind(sql))
+                .tag("outcome", execInfo.isSuccess() ? "success" : "error")
+                .register(this.meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+
+        if (nanos >= this.slowThresholdNanos) {
+            if (log.isWarnEnabled()) {
+                log.warn("Slow statement: {}", describe(execInfo, queryInfoList, nanos, request));
+            }
+        } else if (this.sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < this.sampleRate && log.isInfoEnabled()) {
+            log.info("Sampled statement: {}", describe(execInfo, queryInfoList, nanos, request));
+        }
+    }
+
+    private String describe(ExecutionInfo execInfo, List<QueryInfo> queryInfoList, long nanos, RequestMetrics request) {
+        StringBuilder description = new StringBuilder()
+                .append(TimeUnit.NANOSECONDS.toMillis(nanos)).append(" ms")
+                .append(", ").append(request != null ? request.requestLine() : "no request");
+        if (execInfo.isBatch()) {
+            description.append(", batch of ").append(execInfo.getBatchSize());
+        }
+        if (!execInfo.isSuccess()) {
+            description.append(", failed");
+        }
+        for (QueryInfo query : queryInfoList) {
+            description.append("\n  ").append(query.getQuery());
+            // A batch repeats the statement with other values, the first set shows the shape
+            List<List<ParameterSetOperation>> parameters = query.getParametersList();
+            if (!parameters.isEmpty()) {
+                description.append("\n  parameters ").append(parameters(parameters.get(0)));
+            }
+        }
+        return description.toString();
+    }
+
+    private String parameters(List<ParameterSetOperation> operations) {
+        StringJoiner joiner = new StringJoiner(", ", "[", "]");
+        for (ParameterSetOperation operation : operations) {
+            Object[] args = operation.getArgs();
+            Object value = ParameterSetOperation.isSetNullParameterOperation(operation) || args.length < 2 ? null : args[1];
+            if (value == null) {
+                joiner.add("null");
+            } else if (this.redactParameters) {
+                joiner.add(value.getClass().getSimpleName());
+            } else {
+                joiner.add(String.valueOf(value));
+            }
+        }
+        return joiner.toString();
+    }
+
+    private static String kind(String sql) {
+        String trimmed = sql.stripLeading();
+        int end = 0;
+        while (end < trimmed.length() && Character.isLetter(trimmed.charAt(end))) {
+            end++;
+        }
+        return switch (trimmed.substring(0, end).toLowerCase(Locale.ROOT)) {
+            case "select", "with" -> "select";
+            case "insert" -> "insert";
+            case "update" -> "update";
+            case "delete" -> "delete";
+            default -> "other";
+        };
+    }
+}
@@ -10,9 +10,11 @@ import org.springframework.stereotype.Service;
 public class CustomUserDetailsManager implements UserDetailsManager {
 
     private final UserRepository userRepository;
+    private final UserCache userCache;
 
-    public CustomUserDetailsManager(UserRepository userRepository) {
+    public CustomUserDetailsManager(UserRepository userRepository, UserCache userCache) {
         this.userRepository = userRepository;
+        this.userCache = userCache;
     }
 
     @Override
@@ -37,11 +39,12 @@ public class CustomUserDetailsManager implements UserDetailsManager {
 
     @Override
     public boolean userExists(String username) {
-        return this.userRepository.countByUsername(username) > 0;
+        return this.userCache.contains(username) || this.userRepository.countByUsername(username) > 0;
     }
 
     @Override
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
-        return this.userRepository.findByUsername(username).orElseThrow(() -> new UsernameNotFoundException("User not found"));
+        return this.userCache.get(username, this.userRepository::findByUsername)
+                .orElseThrow(() -> new UsernameNotFoundException("User not found"));
     }
 }
@@ -0,0 +1,119 @@
+package com.pcbaecker.config.security;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counts login attempts per username and per client IP in a sliding window and rejects attempts over the limit
+// before they reach the password hashing. A window is a single AtomicLong updated with CAS, the windows live in a
+// size bounded cache, so a flood of random usernames cannot grow the memory.
+@Component
+public class LoginThrottle {
+
+    private final boolean enabled;
+    private final Duration window;
+    private final Limiter byUsername;
+    private final Limiter byIp;
+
+    public LoginThrottle(
+            MeterRegistry meterRegistry,
+            @Value("${app.security.login-throttle.enabled:true}") boolean enabled,
+            @Value("${app.security.login-throttle.window:PT1M}") Duration window,
+            @Value("${app.security.login-throttle.max-attempts-per-username:20}") int maxAttemptsPerUsername,
+            @Value("${app.security.login-throttle.max-attempts-per-ip:200}") int maxAttemptsPerIp,
+            @Value("${app.security.login-throttle.maximum-keys:100000}") long maximumKeys) {
+        this.enabled = enabled;
+        this.window = window;
+        this.byUsername = new Limiter(meterRegistry, "username", maxAttemptsPerUsername, window, maximumKeys);
+        this.byIp = new Limiter(meterRegistry, "ip", maxAttemptsPerIp, window, maximumKeys);
+    }
+
+    // Counts the attempt and tells if it may go on to the authentication
+    public boolean tryAcquire(String username, String ip) {
+        if (!this.enabled) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        return this.byIp.tryAcquire(ip == null ? "" : ip, now)
+                && this.byUsername.tryAcquire(username == null ? "" : username, now);
+    }
+
+    // The window is the longest it takes until an attempt is allowed again
+    public Duration retryAfter() {
+        return this.window;
+    }
+
+    private static final class Limiter {
+
+        private final Cache<String, Window> windows;
+        private final int limit;
+        private final long windowMillis;
+        private final Counter rejected;
+
+        private Limiter(MeterRegistry meterRegistry, String key, int limit, Duration window, long maximumKeys) {
+            this.limit = limit;
+            this.windowMillis = window.toMillis();
+            // After two windows without attempts there is nothing left to remember
+            this.windows = Caffeine.newBuilder()
+                    .maximumSize(maximumKeys)
+                    .expireAfterAccess(window.multipliedBy(2))
+                    .build();
+            this.rejected = Counter.builder("login.throttle.rejected")
+                    .description("Login attempts rejected before authentication")
+                    .tag("key", key)
+                    .register(meterRegistry);
+            Gauge.builder("login.throttle.keys", this.windows, Cache::estimatedSize)
+                    .description("Usernames or IPs with recent login attempts")
+                    .tag("key", key)
+                    .register(meterRegistry);
+        }
+
+        boolean tryAcquire(String key, long now) {
+            if (this.limit <= 0) {
+                return true;
+            }
+            if (this.windows.get(key, k -> new Window()).tryAcquire(now, this.windowMillis, this.limit)) {
+                return true;
+            }
+            this.rejected.increment();
+            return false;
+        }
+    }
+
+    // Packs the window number (upper 32 bits), the attempts of this window and of the previous one (16 bits each).
+    // The previous window counts with the share it still overlaps the sliding window.
+    private static final class Window extends AtomicLong {
+
+        private static final long MAX_COUNT = 0xFFFF;
+        private static final long MAX_INDEX = 0xFFFFFFFFL;
+
+        boolean tryAcquire(long now, long windowMillis, int limit) {
+            long index = (now / windowMillis) & MAX_INDEX;
+            double previousWeight = 1 - (double) (now % windowMillis) / windowMillis;
+            while (true) {
+                long state = get();
+                long stateIndex = state >>> 32;
+                long current = (state >>> 16) & MAX_COUNT;
+                long previous = state & MAX_COUNT;
+                if (stateIndex != index) {
+                    previous = stateIndex == ((index - 1) & MAX_INDEX) ? current : 0;
+                    current = 0;
+                }
+                if (current + previous * previousWeight >= limit) {
+                    return false;
+                }
+                long next = (index << 32) | (Math.min(current + 1, MAX_COUNT) << 16) | previous;
+                if (compareAndSet(state, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
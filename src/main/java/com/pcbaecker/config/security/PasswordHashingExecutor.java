@@ -0,0 +1,166 @@
+package com.pcbaecker.config.security;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// Password hashing is CPU bound, so we run it on a pool that is not bigger than the number of cores.
+// The request threads only wait for the result, which keeps them free for cheap requests like reading books.
+@Component
+public class PasswordHashingExecutor implements DisposableBean {
+
+    private static final long BULK_RETRY_DELAY_MILLIS = 5;
+
+    private final ThreadPoolExecutor executor;
+    private final Duration waitTimeout;
+    private final Timer waitTimer;
+    private final Timer hashTimer;
+    private final Counter rejectedCounter;
+
+    public PasswordHashingExecutor(
+            MeterRegistry meterRegistry,
+            @Value("${app.security.password-hashing.pool-size:0}") int poolSize,
+            @Value("${app.security.password-hashing.queue-capacity:64}") int queueCapacity,
+            @Value("${app.security.password-hashing.wait-timeout:PT2S}") Duration waitTimeout) {
+        int threads = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("password-hashing-"),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.waitTimeout = waitTimeout;
+        new ExecutorServiceMetrics(this.executor, "password.hashing", Tags.empty()).bindTo(meterRegistry);
+        this.waitTimer = Timer.builder("password.hashing.wait")
+                .description("Time a password check waits for a free hashing thread")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.hashTimer = Timer.builder("password.hashing.duration")
+                .description("Time spent hashing a password")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.rejectedCounter = Counter.builder("password.hashing.rejected")
+                .description("Password checks rejected because the hashing pool was saturated")
+                .register(meterRegistry);
+    }
+
+    public PasswordEncoder bounded(PasswordEncoder delegate) {
+        return new PasswordEncoder() {
+            @Override
+            public String encode(CharSequence rawPassword) {
+                return execute(() -> delegate.encode(rawPassword));
+            }
+
+            @Override
+            public boolean matches(CharSequence rawPassword, String encodedPassword) {
+                return execute(() -> delegate.matches(rawPassword, encodedPassword));
+            }
+
+            @Override
+            public boolean upgradeEncoding(String encodedPassword) {
+                return delegate.upgradeEncoding(encodedPassword);
+            }
+        };
+    }
+
+    <T> T execute(Supplier<T> hashing) {
+        Future<T> future;
+        try {
+            future = submit(hashing);
+        } catch (RejectedExecutionException e) {
+            this.rejectedCounter.increment();
+            throw new PasswordHashingRejectedException("Password hashing queue is full");
+        }
+
+        try {
+            return future.get(this.waitTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // A hash that is already running cannot be interrupted, but a queued one must not run anymore
+            future.cancel(false);
+            this.rejectedCounter.increment();
+            throw new PasswordHashingRejectedException("Password hashing did not finish in time");
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new PasswordHashingRejectedException("Interrupted while waiting for password hashing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException("Password hashing failed", e.getCause());
+        }
+    }
+
+    // Bulk work hashes on the same pool as the logins, so together they never use more threads than there are cores.
+    // At most one hash per thread is queued or running for a call, the rest of the queue stays free for logins.
+    // The results are in the order of the inputs.
+    <T, R> List<R> executeAll(List<T> inputs, Function<T, R> hashing) {
+        final Semaphore inFlight = new Semaphore(this.executor.getMaximumPoolSize());
+        List<Future<R>> futures = new ArrayList<>(inputs.size());
+        try {
+            for (T input : inputs) {
+                inFlight.acquire();
+                futures.add(submitWhenQueued(() -> {
+                    try {
+                        return hashing.apply(input);
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+            List<R> results = new ArrayList<>(futures.size());
+            for (Future<R> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(false));
+            Thread.currentThread().interrupt();
+            throw new PasswordHashingRejectedException("Interrupted while waiting for password hashing");
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(false));
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException("Password hashing failed", e.getCause());
+        }
+    }
+
+    // A queue full of logins makes bulk work wait instead of failing, it is not in a hurry
+    private <T> Future<T> submitWhenQueued(Supplier<T> hashing) throws InterruptedException {
+        while (true) {
+            try {
+                return submit(hashing);
+            } catch (RejectedExecutionException e) {
+                if (this.executor.isShutdown()) {
+                    throw new PasswordHashingRejectedException("Password hashing is shut down");
+                }
+                Thread.sleep(BULK_RETRY_DELAY_MILLIS);
+            }
+        }
+    }
+
+    private <T> Future<T> submit(Supplier<T> hashing) {
+        final long submittedAt = System.nanoTime();
+        return this.executor.submit(() -> {
+            this.waitTimer.record(System.nanoTime() - submittedAt, TimeUnit.NANOSECONDS);
+            return this.hashTimer.record(hashing);
+        });
+    }
+
+    @Override
+    public void destroy() {
+        this.executor.shutdownNow();
+    }
+}
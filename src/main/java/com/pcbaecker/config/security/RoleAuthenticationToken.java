@@ -0,0 +1,46 @@
+package com.pcbaecker.config.security;
+
+import com.pcbaecker.domain.users.UserRole;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+
+import java.io.Serial;
+import java.util.Collection;
+
+// A login with the role bits computed once, it is stored in the session together with the authorities.
+// Role checks on later requests test the bits instead of walking the authority list.
+public class RoleAuthenticationToken extends UsernamePasswordAuthenticationToken {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final long roleBits;
+
+    public RoleAuthenticationToken(Object principal, Object credentials, Collection<? extends GrantedAuthority> authorities) {
+        super(principal, credentials, authorities);
+        this.roleBits = UserRole.bits(authorities);
+    }
+
+    // For tokens read back from the session, which carries the bits computed at login
+    public RoleAuthenticationToken(Object principal, Object credentials, Collection<? extends GrantedAuthority> authorities, long roleBits) {
+        super(principal, credentials, authorities);
+        this.roleBits = roleBits;
+    }
+
+    public long getRoleBits() {
+        return this.roleBits;
+    }
+
+    // Works for every authentication, the ones that were not created at our login (like test users) are walked
+    public static boolean hasAnyRole(Authentication authentication, long roleBits) {
+        if (authentication instanceof RoleAuthenticationToken token) {
+            return (token.roleBits & roleBits) != 0;
+        }
+        return authentication != null && (UserRole.bits(authentication.getAuthorities()) & roleBits) != 0;
+    }
+
+    public static boolean hasRole(Authentication authentication, UserRole role) {
+        return hasAnyRole(authentication, role.bit());
+    }
+}
@@ -0,0 +1,94 @@
+package com.pcbaecker.config.security;
+
+import com.pcbaecker.domain.users.UserRole;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.security.access.annotation.Secured;
+import org.springframework.security.authorization.AuthorizationDecision;
+import org.springframework.security.authorization.AuthorizationManager;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// Answers @Secured (and annotations built on it, like @UserHasRolePublisher) with a bit test against the
+// RoleAuthenticationToken. The required roles are resolved once per method and target class, after that a check
+// is two map lookups that allocate nothing.
+public class RoleAuthorizationManager implements AuthorizationManager<MethodInvocation> {
+
+    private static final AuthorizationDecision GRANTED = new AuthorizationDecision(true);
+    private static final AuthorizationDecision DENIED = new AuthorizationDecision(false);
+    private static final RequiredRoles NOT_SECURED = new RequiredRoles(0, Set.of());
+
+    // By method, then by target class. A combined key would have to be allocated for every lookup.
+    private final Map<Method, Map<Class<?>, RequiredRoles>> requiredRoles = new ConcurrentHashMap<>();
+
+    @Override
+    public AuthorizationDecision check(Supplier<Authentication> authentication, MethodInvocation invocation) {
+        Method method = invocation.getMethod();
+        Object target = invocation.getThis();
+        Class<?> targetClass = target != null ? AopUtils.getTargetClass(target) : method.getDeclaringClass();
+        Map<Class<?>, RequiredRoles> byClass = this.requiredRoles.get(method);
+        RequiredRoles required = byClass != null ? byClass.get(targetClass) : null;
+        if (required == null) {
+            required = this.requiredRoles.computeIfAbsent(method, m -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(targetClass, c -> resolve(method, c));
+        }
+        // Abstains like the default @Secured handling, methods without @Secured are not decided here
+        if (required == NOT_SECURED) {
+            return null;
+        }
+        return required.isGrantedTo(authentication.get()) ? GRANTED : DENIED;
+    }
+
+    private static RequiredRoles resolve(Method method, Class<?> targetClass) {
+        Method specificMethod = AopUtils.getMostSpecificMethod(method, targetClass);
+        Secured secured = AnnotatedElementUtils.findMergedAnnotation(specificMethod, Secured.class);
+        if (secured == null) {
+            secured = AnnotatedElementUtils.findMergedAnnotation(targetClass, Secured.class);
+        }
+        if (secured == null) {
+            return NOT_SECURED;
+        }
+        long bits = 0;
+        Set<String> others = new HashSet<>();
+        for (String authority : secured.value()) {
+            UserRole role = UserRole.fromAuthority(authority);
+            if (role != null) {
+                bits |= role.bit();
+            } else {
+                others.add(authority);
+            }
+        }
+        return new RequiredRoles(bits, Set.copyOf(others));
+    }
+
+    // Authorities that are not one of our roles are compared by name, like the default @Secured handling does
+    private record RequiredRoles(
+            long bits,
+            Set<String> others
+    ) {
+        boolean isGrantedTo(Authentication authentication) {
+            if (authentication == null || !authentication.isAuthenticated()) {
+                return false;
+            }
+            if (this.bits != 0 && RoleAuthenticationToken.hasAnyRole(authentication, this.bits)) {
+                return true;
+            }
+            if (!this.others.isEmpty()) {
+                for (GrantedAuthority authority : authentication.getAuthorities()) {
+                    if (this.others.contains(authority.getAuthority())) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+}
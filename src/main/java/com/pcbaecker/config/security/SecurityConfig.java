@@ -1,14 +1,26 @@
 package com.pcbaecker.config.security;
 
+import com.pcbaecker.config.metrics.LoginPhases;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.observation.ObservationRegistry;
 import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.aop.Advisor;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Role;
 import org.springframework.http.HttpMethod;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.ProviderManager;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.authorization.method.AuthorizationManagerBeforeMethodInterceptor;
 import org.springframework.security.config.annotation.web.configurers.AbstractHttpConfigurer;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.crypto.factory.PasswordEncoderFactories;
 import org.springframework.security.crypto.password.PasswordEncoder;
@@ -17,6 +29,7 @@ import org.springframework.security.web.context.HttpSessionSecurityContextReposi
 import org.springframework.security.web.context.SecurityContextRepository;
 import org.springframework.session.FindByIndexNameSessionRepository;
 import org.springframework.session.Session;
+import org.springframework.util.function.SingletonSupplier;
 
 @Configuration
 public class SecurityConfig {
@@ -57,11 +70,44 @@ public class SecurityConfig {
     @Bean
     public AuthenticationManager authenticationManager(
             UserDetailsService userDetailsService,
-            PasswordEncoder passwordEncoder) {
-        DaoAuthenticationProvider authenticationProvider = new DaoAuthenticationProvider();
-        authenticationProvider.setUserDetailsService(userDetailsService);
-        authenticationProvider.setPasswordEncoder(passwordEncoder);
+            PasswordEncoder passwordEncoder,
+            PasswordHashingExecutor passwordHashingExecutor,
+            ObservationRegistry observationRegistry) {
+        // The successful login carries its role bits, so later role checks do not have to walk the authorities
+        DaoAuthenticationProvider authenticationProvider = new DaoAuthenticationProvider() {
+            @Override
+            protected Authentication createSuccessAuthentication(Object principal, Authentication authentication, UserDetails user) {
+                Authentication result = super.createSuccessAuthentication(principal, authentication, user);
+                RoleAuthenticationToken token = new RoleAuthenticationToken(
+                        result.getPrincipal(), result.getCredentials(), result.getAuthorities());
+                token.setDetails(result.getDetails());
+                return token;
+            }
+
+            @Override
+            protected void additionalAuthenticationChecks(UserDetails userDetails, UsernamePasswordAuthenticationToken authentication) {
+                LoginPhases.observe(observationRegistry, LoginPhases.PASSWORD_MATCH,
+                        () -> super.additionalAuthenticationChecks(userDetails, authentication));
+            }
+        };
+        authenticationProvider.setUserDetailsService(username -> LoginPhases.observe(observationRegistry,
+                LoginPhases.USER_LOOKUP, () -> userDetailsService.loadUserByUsername(username)));
+        // Logins hash on a dedicated pool, so a burst of logins cannot block all request threads
+        authenticationProvider.setPasswordEncoder(passwordHashingExecutor.bounded(passwordEncoder));
         return new ProviderManager(authenticationProvider);
     }
 
+    // Replaces the default @Secured handling, which is therefore not enabled on StartApplication
+    @Bean
+    @Role(BeanDefinition.ROLE_INFRASTRUCTURE)
+    static Advisor securedAuthorizationAdvisor(ObjectProvider<MeterRegistry> meterRegistry) {
+        RoleAuthorizationManager authorizationManager = new RoleAuthorizationManager();
+        // Infrastructure beans are created early, so the meter registry is only looked up on the first check
+        SingletonSupplier<Timer> checkTimer = SingletonSupplier.of(() -> Timer.builder("security.secured.check")
+                .description("Time to decide a @Secured check")
+                .register(meterRegistry.getObject()));
+        return AuthorizationManagerBeforeMethodInterceptor.secured((authentication, invocation) ->
+                checkTimer.obtain().record(() -> authorizationManager.check(authentication, invocation)));
+    }
+
 }
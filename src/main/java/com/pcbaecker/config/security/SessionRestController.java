@@ -1,14 +1,18 @@
 package com.pcbaecker.config.security;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.pcbaecker.domain.users.User;
-import com.pcbaecker.domain.users.UserRepository;
+import com.pcbaecker.config.UntilInvalidJson;
+import com.pcbaecker.config.metrics.LoginPhases;
+import com.pcbaecker.config.metrics.RequestMetrics;
+import com.pcbaecker.config.session.MaxSessionsPolicy;
+import com.pcbaecker.config.session.SessionMetadataIndex;
+import io.micrometer.observation.ObservationRegistry;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpSession;
 import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotBlank;
-import org.apache.commons.codec.digest.DigestUtils;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -22,11 +26,18 @@ import org.springframework.session.FindByIndexNameSessionRepository;
 import org.springframework.session.Session;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.time.Instant;
-import java.time.LocalDateTime;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 import static org.springframework.security.web.context.HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY;
 
@@ -34,28 +45,60 @@ import static org.springframework.security.web.context.HttpSessionSecurityContex
 @RequestMapping("/")
 public class SessionRestController {
 
-    private static final String USER_AGENT = "USER_AGENT";
+    public static final String USER_AGENT = "USER_AGENT";
 
     private final FindByIndexNameSessionRepository<? extends Session> sessions;
+    private final SessionMetadataIndex sessionMetadataIndex;
     private final AuthenticationManager authenticationManager;
-    private final UserRepository userRepository;
+    private final UserProvisioning userProvisioning;
+    private final ObjectMapper objectMapper;
+    private final LoginThrottle loginThrottle;
+    private final MaxSessionsPolicy maxSessionsPolicy;
+    private final ObservationRegistry observationRegistry;
 
-    public SessionRestController(FindByIndexNameSessionRepository<? extends Session> sessions, AuthenticationManager authenticationManager, UserRepository userRepository) {
+    public SessionRestController(FindByIndexNameSessionRepository<? extends Session> sessions, SessionMetadataIndex sessionMetadataIndex, AuthenticationManager authenticationManager, UserProvisioning userProvisioning, ObjectMapper objectMapper, LoginThrottle loginThrottle, MaxSessionsPolicy maxSessionsPolicy, ObservationRegistry observationRegistry) {
         this.sessions = sessions;
+        this.sessionMetadataIndex = sessionMetadataIndex;
         this.authenticationManager = authenticationManager;
-        this.userRepository = userRepository;
+        this.userProvisioning = userProvisioning;
+        this.objectMapper = objectMapper;
+        this.loginThrottle = loginThrottle;
+        this.maxSessionsPolicy = maxSessionsPolicy;
+        this.observationRegistry = observationRegistry;
     }
 
     @PostMapping(value = "/login", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<String> authenticateUser(@RequestBody LoginRequest request, HttpServletRequest req) {
-        Authentication authentication = authenticationManager
-                .authenticate(new UsernamePasswordAuthenticationToken(request.username(), request.password()));
+        // Attempts over the limit never reach the password hashing. Behind the load balancer the remote address is
+        // the client IP from X-Forwarded-For, see server.forward-headers-strategy.
+        if (!this.loginThrottle.tryAcquire(request.username(), req.getRemoteAddr())) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(this.loginThrottle.retryAfter().toSeconds()))
+                    .body("Too many login attempts, please try again later");
+        }
+        Authentication authentication;
+        try {
+            authentication = authenticationManager
+                    .authenticate(new UsernamePasswordAuthenticationToken(request.username(), request.password()));
+        } catch (PasswordHashingRejectedException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "1")
+                    .body("Too many logins at the moment, please try again later");
+        }
         SecurityContext sc = SecurityContextHolder.getContext();
         sc.setAuthentication(authentication);
-        HttpSession session = req.getSession(true);
-        session.setAttribute(SPRING_SECURITY_CONTEXT_KEY, sc);
-        String userAgent = StringUtils.hasText(req.getHeader("User-Agent")) ? req.getHeader("User-Agent") : "Unknown";
-        session.setAttribute(USER_AGENT, userAgent);
+        HttpSession session = LoginPhases.observe(this.observationRegistry, LoginPhases.SESSION_CREATE, () -> {
+            HttpSession created = req.getSession(true);
+            created.setAttribute(SPRING_SECURITY_CONTEXT_KEY, sc);
+            String userAgent = StringUtils.hasText(req.getHeader("User-Agent")) ? req.getHeader("User-Agent") : "Unknown";
+            created.setAttribute(USER_AGENT, userAgent);
+            return created;
+        });
+        // Makes room for the new session by ending the least recently used ones over the limit
+        LoginPhases.observe(this.observationRegistry, LoginPhases.SESSION_LIMIT,
+                () -> this.maxSessionsPolicy.enforce(authentication.getName(), session.getId()));
+        // The session is saved to Redis after we return, that is reported as the session-save phase
+        RequestMetrics.markLogin();
         return new ResponseEntity<>("User login successfully!...", HttpStatus.OK);
     }
 
@@ -63,13 +106,10 @@ public class SessionRestController {
     public ResponseEntity<Set<SessionInfo>> getMySessions(HttpServletRequest req) {
         final String username = SecurityContextHolder.getContext().getAuthentication().getName();
         final String currentSessionId = req.getSession().getId();
-        var result = this.sessions.findByPrincipalName(username).entrySet().stream().map(e -> new SessionInfo(
-                DigestUtils.sha256Hex(e.getKey()),
-                e.getValue().getAttribute(USER_AGENT),
-                e.getValue().getCreationTime().toEpochMilli(),
-                e.getValue().getLastAccessedTime().toEpochMilli(),
-                currentSessionId.equals(e.getKey())
-        )).collect(Collectors.toSet());
+        // The metadata index answers this with a single HGETALL instead of loading every session of the user
+        var result = this.sessionMetadataIndex.findByPrincipalName(username).stream()
+                .map(m -> SessionInfo.of(m, currentSessionId))
+                .collect(Collectors.toSet());
         return new ResponseEntity<>(result, HttpStatus.OK);
     }
 
@@ -77,31 +117,63 @@ public class SessionRestController {
     public ResponseEntity<String> deleteSession(@PathVariable("id") String id, HttpServletRequest req) {
         final String username = SecurityContextHolder.getContext().getAuthentication().getName();
         final String currentSessionId = req.getSession().getId();
-        if (DigestUtils.sha256Hex(currentSessionId).equals(id)) {
+        // The metadata index maps the hashed id back to the real one and only knows sessions of this user
+        var metadata = this.sessionMetadataIndex.findByHashedId(username, id);
+        if (metadata.isPresent() && metadata.get().id().equals(currentSessionId)) {
             return new ResponseEntity<>("Cannot delete current session", HttpStatus.BAD_REQUEST);
         }
-        var sessionOpt = this.sessions.findByPrincipalName(username).entrySet().stream().filter(
-                e -> DigestUtils.sha256Hex(e.getKey()).equals(id)).findFirst();
-        if (sessionOpt.isEmpty()) {
+        if (metadata.isEmpty()) {
             return new ResponseEntity<>("Session not found", HttpStatus.NOT_FOUND);
         }
-        this.sessions.deleteById(sessionOpt.get().getKey());
+        this.sessions.deleteById(metadata.get().id());
         return new ResponseEntity<>("Session deleted", HttpStatus.OK);
     }
 
     @Secured("ROLE_ADMIN")
     @PostMapping(value = "/user", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<User> createUser(@RequestBody CreateUserRequest request) throws JsonProcessingException {
-        User user = User.builder()
-                .username(request.username())
-                .password(request.password())
-                .createdAt(LocalDateTime.now())
-                .updatedAt(LocalDateTime.now())
-                .build();
-        user = userRepository.save(user);
-        //ObjectMapper oj = new ObjectMapper();
-        //System.err.println(oj.writeValueAsString(user));
-        return new ResponseEntity<>(user, HttpStatus.CREATED);
+    public ResponseEntity<UserProvisioning.ProvisionResult> createUser(@RequestBody CreateUserRequest request) {
+        UserProvisioning.ProvisionResult result = this.userProvisioning.create(request.toDraft());
+        if (result.error() == null) {
+            return new ResponseEntity<>(result, HttpStatus.CREATED);
+        }
+        return new ResponseEntity<>(result, UserProvisioning.USERNAME_TAKEN.equals(result.error()) ? HttpStatus.CONFLICT : HttpStatus.BAD_REQUEST);
+    }
+
+    // One user per line in, one result per line out. The results of a chunk are written as soon as it is committed,
+    // so neither side holds the whole provisioning in memory.
+    @Secured("ROLE_ADMIN")
+    @PostMapping(value = "/users/bulk", consumes = MediaType.APPLICATION_NDJSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> provisionUsers(InputStream body) {
+        StreamingResponseBody results = out -> {
+            final int[] written = {0};
+            try (MappingIterator<CreateUserRequest> parser = this.objectMapper.readerFor(CreateUserRequest.class).readValues(body)) {
+                UntilInvalidJson<CreateUserRequest> requests = new UntilInvalidJson<>(parser);
+                Iterator<UserProvisioning.UserDraft> drafts = StreamSupport.stream(
+                                Spliterators.spliteratorUnknownSize(requests, Spliterator.ORDERED), false)
+                        .map(CreateUserRequest::toDraft)
+                        .iterator();
+                this.userProvisioning.provisionAll(drafts, chunk -> {
+                    try {
+                        for (UserProvisioning.ProvisionResult result : chunk) {
+                            out.write(this.objectMapper.writeValueAsBytes(result));
+                            out.write('\n');
+                        }
+                        out.flush();
+                        written[0] += chunk.size();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                if (requests.isInvalid()) {
+                    // The status is already sent, so the last line tells where the provisioning stopped
+                    out.write(this.objectMapper.writeValueAsBytes(new UserProvisioning.ProvisionResult(written[0], null, null,
+                            "Invalid JSON, this row and all after it were not provisioned")));
+                    out.write('\n');
+                }
+            }
+            out.flush();
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(results);
     }
 
     public record LoginRequest(
@@ -115,7 +187,16 @@ public class SessionRestController {
             long creationTime,
             long lastAccessedTime,
             boolean isCurrent
-    ) {}
+    ) {
+        public static SessionInfo of(SessionMetadataIndex.SessionMetadata metadata, String currentSessionId) {
+            return new SessionInfo(
+                    metadata.hashedId(),
+                    metadata.userAgent(),
+                    metadata.creationTime().toEpochMilli(),
+                    metadata.lastAccessedTime().toEpochMilli(),
+                    currentSessionId.equals(metadata.id()));
+        }
+    }
 
     public record CreateUserRequest(
             @NotBlank(message = "Username is mandatory")
@@ -123,7 +204,17 @@ public class SessionRestController {
             String username,
             @NotBlank(message = "Password is mandatory")
             @Min(value = 8, message = "Password must be at least 8 characters long")
-            String password
-    ) {}
+            String password,
+            // ADMIN or ROLE_ADMIN, without roles the user gets USER
+            List<String> roles
+    ) {
+        public CreateUserRequest(String username, String password) {
+            this(username, password, List.of());
+        }
+
+        UserProvisioning.UserDraft toDraft() {
+            return new UserProvisioning.UserDraft(this.username, this.password, this.roles);
+        }
+    }
 
 }
@@ -0,0 +1,102 @@
+package com.pcbaecker.config.security;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.pcbaecker.domain.users.User;
+import com.pcbaecker.domain.users.UserChangedEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+// Keeps the data needed for authentication in memory, so a login storm does not hit the database for every attempt.
+// Entries are invalidated after every committed user write on this node, the TTL bounds the staleness on other nodes.
+// With the Hibernate second-level cache on, a miss can load a user that is already stale there, so the bound is
+// the sum of both TTLs.
+@Component
+public class UserCache {
+
+    private final AsyncCache<String, CachedUser> users;
+
+    public UserCache(
+            MeterRegistry meterRegistry,
+            @Value("${app.security.user-cache.maximum-size:10000}") long maximumSize,
+            @Value("${app.security.user-cache.ttl:PT5M}") Duration ttl) {
+        this.users = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .buildAsync();
+        CaffeineCacheMetrics.monitor(meterRegistry, this.users, "users");
+    }
+
+    // The loader runs outside of Caffeine's compute, which holds a monitor: a database call in there would pin a
+    // virtual thread to its carrier. Concurrent logins of the same user still share one load through the future.
+    public Optional<User> get(String username, Function<String, Optional<User>> loader) {
+        CompletableFuture<CachedUser> loading = new CompletableFuture<>();
+        CompletableFuture<CachedUser> cached = this.users.get(username, (key, executor) -> loading);
+        if (cached == loading) {
+            try {
+                loading.complete(loader.apply(username).map(CachedUser::of).orElse(null));
+            } catch (RuntimeException e) {
+                loading.completeExceptionally(e);
+            }
+        }
+        try {
+            return Optional.ofNullable(cached.join()).map(CachedUser::toUser);
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    public boolean contains(String username) {
+        CompletableFuture<CachedUser> cached = this.users.getIfPresent(username);
+        return cached != null && cached.isDone() && !cached.isCompletedExceptionally() && cached.join() != null;
+    }
+
+    public void invalidate(String username) {
+        this.users.synchronous().invalidate(username);
+    }
+
+    // Runs after the commit, otherwise a concurrent login could put the old state back into the cache
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onUserChanged(UserChangedEvent event) {
+        this.invalidate(event.username());
+    }
+
+    // We never hand out the cached instance, so nobody can modify the cache content by accident
+    private record CachedUser(
+            Long id,
+            String username,
+            String password,
+            List<String> roles,
+            LocalDateTime createdAt,
+            LocalDateTime updatedAt
+    ) {
+        static CachedUser of(User user) {
+            return new CachedUser(user.getId(), user.getUsername(), user.getPassword(),
+                    List.copyOf(user.getRoles()), user.getCreatedAt(), user.getUpdatedAt());
+        }
+
+        User toUser() {
+            return User.builder()
+                    .id(this.id)
+                    .username(this.username)
+                    .password(this.password)
+                    .roles(new ArrayList<>(this.roles))
+                    .createdAt(this.createdAt)
+                    .updatedAt(this.updatedAt)
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.pcbaecker.config.security;
+
+import com.pcbaecker.domain.users.User;
+import com.pcbaecker.domain.users.UserRepository;
+import com.pcbaecker.domain.users.UserRole;
+import jakarta.persistence.EntityManager;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StringUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+// Creates users chunk by chunk. The passwords of a chunk are hashed in parallel on the password hashing pool,
+// then the users and their roles are inserted in one transaction with JDBC batching. Every row gets a result,
+// invalid rows and taken usernames do not stop the provisioning.
+@Component
+public class UserProvisioning {
+
+    private static final int MIN_USERNAME_LENGTH = 3;
+    private static final int MIN_PASSWORD_LENGTH = 8;
+    static final String USERNAME_TAKEN = "Username already exists";
+
+    private final UserRepository userRepository;
+    private final PasswordEncoder passwordEncoder;
+    private final PasswordHashingExecutor passwordHashingExecutor;
+    private final EntityManager entityManager;
+    private final TransactionTemplate transactionTemplate;
+    private final int chunkSize;
+
+    public UserProvisioning(
+            UserRepository userRepository,
+            PasswordEncoder passwordEncoder,
+            PasswordHashingExecutor passwordHashingExecutor,
+            EntityManager entityManager,
+            TransactionTemplate transactionTemplate,
+            @Value("${app.security.user-provisioning.chunk-size:500}") int chunkSize) {
+        this.userRepository = userRepository;
+        this.passwordEncoder = passwordEncoder;
+        this.passwordHashingExecutor = passwordHashingExecutor;
+        this.entityManager = entityManager;
+        this.transactionTemplate = transactionTemplate;
+        this.chunkSize = chunkSize;
+    }
+
+    public ProvisionResult create(UserDraft draft) {
+        return provisionChunk(List.of(new ProvisionRow(0, draft))).get(0);
+    }
+
+    // The results of a chunk are handed to the consumer as soon as the chunk is committed, in row order
+    public void provisionAll(Iterator<UserDraft> drafts, Consumer<List<ProvisionResult>> results) {
+        List<ProvisionRow> chunk = new ArrayList<>(this.chunkSize);
+        int row = 0;
+        while (drafts.hasNext()) {
+            chunk.add(new ProvisionRow(row++, drafts.next()));
+            if (chunk.size() == this.chunkSize) {
+                results.accept(provisionChunk(chunk));
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            results.accept(provisionChunk(chunk));
+        }
+    }
+
+    private List<ProvisionResult> provisionChunk(List<ProvisionRow> chunk) {
+        ProvisionResult[] chunkResults = new ProvisionResult[chunk.size()];
+        List<ProvisionRow> valid = new ArrayList<>(chunk.size());
+        List<List<String>> validRoles = new ArrayList<>(chunk.size());
+        Set<String> usernames = new HashSet<>();
+        for (int i = 0; i < chunk.size(); i++) {
+            ProvisionRow row = chunk.get(i);
+            String error = validate(row.draft());
+            List<String> roles = error == null ? roles(row.draft().roles()) : null;
+            if (error == null && roles == null) {
+                error = "Unknown role, expected one of " + List.of(UserRole.values());
+            }
+            if (error == null && !usernames.add(row.draft().username())) {
+                error = "Username appears more than once in the provisioning";
+            }
+            if (error != null) {
+                chunkResults[i] = row.failed(error);
+            } else {
+                valid.add(row);
+                validRoles.add(roles);
+            }
+        }
+
+        if (!valid.isEmpty()) {
+            // One query finds all usernames of the chunk that are taken, their passwords are not worth hashing
+            Set<String> existing = this.userRepository.findUsernamesIn(usernames);
+            List<ProvisionRow> toInsert = new ArrayList<>(valid.size());
+            List<List<String>> toInsertRoles = new ArrayList<>(valid.size());
+            for (int i = 0; i < valid.size(); i++) {
+                ProvisionRow row = valid.get(i);
+                if (existing.contains(row.draft().username())) {
+                    chunkResults[row.row() - chunk.get(0).row()] = row.failed(USERNAME_TAKEN);
+                } else {
+                    toInsert.add(row);
+                    toInsertRoles.add(validRoles.get(i));
+                }
+            }
+
+            List<String> hashes = this.passwordHashingExecutor.executeAll(toInsert,
+                    row -> this.passwordEncoder.encode(row.draft().password()));
+            List<ProvisionResult> inserted = insert(toInsert, hashes, toInsertRoles);
+            for (ProvisionResult result : inserted) {
+                chunkResults[result.row() - chunk.get(0).row()] = result;
+            }
+        }
+
+        return List.of(chunkResults);
+    }
+
+    private List<ProvisionResult> insert(List<ProvisionRow> rows, List<String> hashes, List<List<String>> roles) {
+        List<ProvisionResult> results = new ArrayList<>(rows.size());
+        try {
+            List<User> users = new ArrayList<>(rows.size());
+            for (int i = 0; i < rows.size(); i++) {
+                users.add(newUser(rows.get(i).draft().username(), hashes.get(i), roles.get(i)));
+            }
+            this.transactionTemplate.executeWithoutResult(status -> {
+                this.userRepository.saveAll(users);
+                detachInserted();
+            });
+            for (int i = 0; i < rows.size(); i++) {
+                results.add(rows.get(i).created(users.get(i)));
+            }
+            return results;
+        } catch (DataIntegrityViolationException e) {
+            // Someone else took one of the usernames in the meantime, so we have to find out which one row by row
+            for (int i = 0; i < rows.size(); i++) {
+                ProvisionRow row = rows.get(i);
+                User user = newUser(row.draft().username(), hashes.get(i), roles.get(i));
+                try {
+                    this.transactionTemplate.executeWithoutResult(status -> {
+                        this.userRepository.save(user);
+                        detachInserted();
+                    });
+                    results.add(row.created(user));
+                } catch (DataIntegrityViolationException rowException) {
+                    results.add(row.failed(USERNAME_TAKEN));
+                }
+            }
+            return results;
+        }
+    }
+
+    // The streamed provisioning runs with the EntityManager that open-in-view bound to the request, it outlives the
+    // chunk transactions. Cleared, the inserted users do not pile up in it and are not dirty checked again later.
+    private void detachInserted() {
+        this.entityManager.flush();
+        this.entityManager.clear();
+    }
+
+    private static String validate(UserDraft draft) {
+        if (!StringUtils.hasText(draft.username()) || draft.username().length() < MIN_USERNAME_LENGTH) {
+            return "Username must be at least " + MIN_USERNAME_LENGTH + " characters long";
+        }
+        if (!StringUtils.hasText(draft.password()) || draft.password().length() < MIN_PASSWORD_LENGTH) {
+            return "Password must be at least " + MIN_PASSWORD_LENGTH + " characters long";
+        }
+        return null;
+    }
+
+    // Roles can be given as ADMIN or ROLE_ADMIN, users without roles get USER. Returns null for an unknown role.
+    private static List<String> roles(List<String> names) {
+        if (names == null || names.isEmpty()) {
+            return List.of(UserRole.USER.getAuthority());
+        }
+        List<String> authorities = new ArrayList<>(names.size());
+        for (String name : names) {
+            UserRole role = name == null ? null : UserRole.fromAuthority(name.startsWith("ROLE_") ? name : "ROLE_" + name);
+            if (role == null) {
+                return null;
+            }
+            if (!authorities.contains(role.getAuthority())) {
+                authorities.add(role.getAuthority());
+            }
+        }
+        return authorities;
+    }
+
+    private static User newUser(String username, String passwordHash, List<String> roles) {
+        return User.builder()
+                .username(username)
+                .password(passwordHash)
+                .roles(new ArrayList<>(roles))
+                .createdAt(LocalDateTime.now())
+                .updatedAt(LocalDateTime.now())
+                .build();
+    }
+
+    public record UserDraft(
+            String username,
+            String password,
+            List<String> roles
+    ) {
+    }
+
+    public record ProvisionResult(
+            int row,
+            String username,
+            Long id,
+            String error
+    ) {
+    }
+
+    private record ProvisionRow(
+            int row,
+            UserDraft draft
+    ) {
+        ProvisionResult created(User user) {
+            return new ProvisionResult(this.row, this.draft.username(), user.getId(), null);
+        }
+
+        ProvisionResult failed(String error) {
+            return new ProvisionResult(this.row, this.draft.username(), null, error);
+        }
+    }
+}
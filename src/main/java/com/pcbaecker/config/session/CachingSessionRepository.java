@@ -0,0 +1,307 @@
+package com.pcbaecker.config.session;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.Session;
+import org.springframework.session.events.SessionDestroyedEvent;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+// Resolving the session cookie would cost a Redis round-trip on every request. We keep a short-lived snapshot of
+// recently used sessions in memory and only go to Redis when a request actually changes its session.
+// Every change or delete is published on a Redis channel, so the other nodes drop their copy right away.
+// The TTL bounds how long a node can serve a stale session if it misses such a message.
+public class CachingSessionRepository implements FindByIndexNameSessionRepository<Session>, MessageListener {
+
+    public static final String INVALIDATION_CHANNEL = "spring:session:l1-invalidation";
+
+    private final FindByIndexNameSessionRepository<Session> delegate;
+    private final RedisSerializer<Object> serializer;
+    private final StringRedisTemplate redis;
+    private final boolean enabled;
+    private final Cache<String, SessionSnapshot> snapshots;
+    // Lets us ignore our own invalidation messages
+    private final String nodeId = UUID.randomUUID().toString();
+
+    @SuppressWarnings("unchecked")
+    public CachingSessionRepository(
+            FindByIndexNameSessionRepository<? extends Session> delegate,
+            RedisSerializer<Object> serializer,
+            StringRedisTemplate redis,
+            MeterRegistry meterRegistry,
+            boolean enabled,
+            long maximumSize,
+            Duration ttl) {
+        this.delegate = (FindByIndexNameSessionRepository<Session>) delegate;
+        this.serializer = serializer;
+        this.redis = redis;
+        this.enabled = enabled;
+        this.snapshots = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, this.snapshots, "sessions");
+    }
+
+    @Override
+    public Session createSession() {
+        return this.delegate.createSession();
+    }
+
+    @Override
+    public void save(Session session) {
+        if (!(session instanceof CachedSession cached)) {
+            this.delegate.save(session);
+            invalidateEverywhere(session.getId());
+            return;
+        }
+        if (!cached.hasChanges()) {
+            return;
+        }
+        // The snapshot cannot be written to Redis, so the changes are applied to the real session
+        Session target = cached.materialize();
+        if (target == null) {
+            invalidateEverywhere(cached.getId());
+            return;
+        }
+        this.delegate.save(target);
+        invalidateEverywhere(cached.originalId);
+        if (!cached.originalId.equals(target.getId())) {
+            invalidateEverywhere(target.getId());
+        }
+    }
+
+    @Override
+    public Session findById(String id) {
+        if (!this.enabled) {
+            return this.delegate.findById(id);
+        }
+        SessionSnapshot snapshot = this.snapshots.getIfPresent(id);
+        if (snapshot != null && !snapshot.isExpired(Instant.now())) {
+            return new CachedSession(snapshot);
+        }
+        Session session = this.delegate.findById(id);
+        if (session != null) {
+            this.snapshots.put(id, SessionSnapshot.of(session, this.serializer));
+        }
+        return session;
+    }
+
+    @Override
+    public void deleteById(String id) {
+        this.delegate.deleteById(id);
+        invalidateEverywhere(id);
+    }
+
+    @Override
+    public Map<String, Session> findByIndexNameAndIndexValue(String indexName, String indexValue) {
+        return this.delegate.findByIndexNameAndIndexValue(indexName, indexValue);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] body = new String(message.getBody(), StandardCharsets.UTF_8).split(":", 2);
+        if (body.length == 2 && !this.nodeId.equals(body[0])) {
+            this.snapshots.invalidate(body[1]);
+        }
+    }
+
+    // Sessions that expired in Redis are announced to every node through keyspace notifications
+    @EventListener
+    public void onSessionDestroyed(SessionDestroyedEvent event) {
+        this.snapshots.invalidate(event.getSessionId());
+    }
+
+    private void invalidateEverywhere(String sessionId) {
+        this.snapshots.invalidate(sessionId);
+        if (this.enabled) {
+            this.redis.convertAndSend(INVALIDATION_CHANNEL, this.nodeId + ":" + sessionId);
+        }
+    }
+
+    // Attributes are kept serialized, so every request gets its own copy and cannot change the cached one
+    record SessionSnapshot(
+            String id,
+            Instant creationTime,
+            Instant lastAccessedTime,
+            Duration maxInactiveInterval,
+            Map<String, byte[]> attributes
+    ) {
+        static SessionSnapshot of(Session session, RedisSerializer<Object> serializer) {
+            Map<String, byte[]> attributes = new HashMap<>();
+            for (String name : session.getAttributeNames()) {
+                attributes.put(name, serializer.serialize(session.getAttribute(name)));
+            }
+            return new SessionSnapshot(session.getId(), session.getCreationTime(), session.getLastAccessedTime(),
+                    session.getMaxInactiveInterval(), attributes);
+        }
+
+        boolean isExpired(Instant now) {
+            return !this.maxInactiveInterval.isNegative()
+                    && !now.isBefore(this.lastAccessedTime.plus(this.maxInactiveInterval));
+        }
+    }
+
+    // Served from a snapshot and records all changes. Once something needs the real session, for example
+    // a new session id, it loads it from the delegate and from then on works on it directly.
+    private final class CachedSession implements Session {
+
+        private final String originalId;
+        private final Instant creationTime;
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final Map<String, Object> changedAttributes = new HashMap<>();
+        private Instant lastAccessedTime;
+        private Duration maxInactiveInterval;
+        private boolean lastAccessedTimeChanged;
+        private boolean maxInactiveIntervalChanged;
+        private boolean changed;
+        private Session materialized;
+
+        private CachedSession(SessionSnapshot snapshot) {
+            this.originalId = snapshot.id();
+            this.creationTime = snapshot.creationTime();
+            this.lastAccessedTime = snapshot.lastAccessedTime();
+            this.maxInactiveInterval = snapshot.maxInactiveInterval();
+            snapshot.attributes().forEach((name, value) -> this.attributes.put(name, serializer.deserialize(value)));
+        }
+
+        boolean hasChanges() {
+            return this.changed || this.materialized != null;
+        }
+
+        Session materialize() {
+            if (this.materialized == null) {
+                Session session = delegate.findById(this.originalId);
+                if (session == null) {
+                    return null;
+                }
+                this.changedAttributes.forEach(session::setAttribute);
+                if (this.maxInactiveIntervalChanged) {
+                    session.setMaxInactiveInterval(this.maxInactiveInterval);
+                }
+                // Another node may have touched the session after our snapshot was taken
+                if (this.lastAccessedTimeChanged && this.lastAccessedTime.isAfter(session.getLastAccessedTime())) {
+                    session.setLastAccessedTime(this.lastAccessedTime);
+                }
+                this.materialized = session;
+            }
+            return this.materialized;
+        }
+
+        @Override
+        public String getId() {
+            return this.materialized != null ? this.materialized.getId() : this.originalId;
+        }
+
+        @Override
+        public String changeSessionId() {
+            Session session = materialize();
+            if (session == null) {
+                throw new IllegalStateException("Session " + this.originalId + " does not exist anymore");
+            }
+            return session.changeSessionId();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T getAttribute(String attributeName) {
+            if (this.materialized != null) {
+                return this.materialized.getAttribute(attributeName);
+            }
+            return (T) this.attributes.get(attributeName);
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            if (this.materialized != null) {
+                return this.materialized.getAttributeNames();
+            }
+            return Collections.unmodifiableSet(new HashSet<>(this.attributes.keySet()));
+        }
+
+        @Override
+        public void setAttribute(String attributeName, Object attributeValue) {
+            if (attributeValue == null) {
+                removeAttribute(attributeName);
+                return;
+            }
+            if (this.materialized != null) {
+                this.materialized.setAttribute(attributeName, attributeValue);
+                return;
+            }
+            this.attributes.put(attributeName, attributeValue);
+            this.changedAttributes.put(attributeName, attributeValue);
+            this.changed = true;
+        }
+
+        @Override
+        public void removeAttribute(String attributeName) {
+            if (this.materialized != null) {
+                this.materialized.removeAttribute(attributeName);
+                return;
+            }
+            this.attributes.remove(attributeName);
+            // Setting null removes the attribute on the real session
+            this.changedAttributes.put(attributeName, null);
+            this.changed = true;
+        }
+
+        @Override
+        public Instant getCreationTime() {
+            return this.creationTime;
+        }
+
+        @Override
+        public void setLastAccessedTime(Instant lastAccessedTime) {
+            if (this.materialized != null) {
+                this.materialized.setLastAccessedTime(lastAccessedTime);
+                return;
+            }
+            this.lastAccessedTime = lastAccessedTime;
+            this.lastAccessedTimeChanged = true;
+            this.changed = true;
+        }
+
+        @Override
+        public Instant getLastAccessedTime() {
+            return this.materialized != null ? this.materialized.getLastAccessedTime() : this.lastAccessedTime;
+        }
+
+        @Override
+        public void setMaxInactiveInterval(Duration interval) {
+            if (this.materialized != null) {
+                this.materialized.setMaxInactiveInterval(interval);
+                return;
+            }
+            this.maxInactiveInterval = interval;
+            this.maxInactiveIntervalChanged = true;
+            this.changed = true;
+        }
+
+        @Override
+        public Duration getMaxInactiveInterval() {
+            return this.materialized != null ? this.materialized.getMaxInactiveInterval() : this.maxInactiveInterval;
+        }
+
+        @Override
+        public boolean isExpired() {
+            if (this.materialized != null) {
+                return this.materialized.isExpired();
+            }
+            return !this.maxInactiveInterval.isNegative()
+                    && !Instant.now().isBefore(this.lastAccessedTime.plus(this.maxInactiveInterval));
+        }
+    }
+}
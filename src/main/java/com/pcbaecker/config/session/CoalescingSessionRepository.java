@@ -0,0 +1,241 @@
+package com.pcbaecker.config.session;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.Session;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// The session filter touches the session on every request, which would write lastAccessedTime and the expiry keys
+// to Redis even for plain reads. Small touches are kept in memory and written by a background flusher instead.
+// A touch is written right away when it moves the access time by more than the threshold, or when the request
+// changed the session anyway. The flusher writes the access times of all pending sessions in a few pipelined round
+// trips, without loading them.
+public class CoalescingSessionRepository implements FindByIndexNameSessionRepository<Session> {
+
+    private static final Logger log = LoggerFactory.getLogger(CoalescingSessionRepository.class);
+    // Bounds the size of a pipeline, a failing batch only loses its own touches
+    private static final int FLUSH_BATCH_SIZE = 1000;
+
+    private final FindByIndexNameSessionRepository<Session> delegate;
+    private final SessionTouchWriter touchWriter;
+    private final boolean enabled;
+    private final Duration minInterval;
+    private final double maxInactiveFraction;
+    private final Map<String, Instant> pendingTouches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final Counter coalescedCounter;
+    private final Counter flushedCounter;
+
+    @SuppressWarnings("unchecked")
+    public CoalescingSessionRepository(
+            FindByIndexNameSessionRepository<? extends Session> delegate,
+            SessionTouchWriter touchWriter,
+            MeterRegistry meterRegistry,
+            boolean enabled,
+            Duration minInterval,
+            double maxInactiveFraction,
+            Duration flushInterval) {
+        this.delegate = (FindByIndexNameSessionRepository<Session>) delegate;
+        this.touchWriter = touchWriter;
+        this.enabled = enabled;
+        this.minInterval = minInterval;
+        this.maxInactiveFraction = maxInactiveFraction;
+        this.coalescedCounter = Counter.builder("session.touch.coalesced")
+                .description("Session touches that were not written to Redis on the request")
+                .register(meterRegistry);
+        this.flushedCounter = Counter.builder("session.touch.flushed")
+                .description("Pending session touches written by the background flusher")
+                .register(meterRegistry);
+        Gauge.builder("session.touch.pending", this.pendingTouches, Map::size)
+                .description("Session touches waiting for the background flusher")
+                .register(meterRegistry);
+        if (enabled) {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("session-touch-flusher-"));
+            this.flusher.scheduleWithFixedDelay(this::flush,
+                    flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            this.flusher = null;
+        }
+    }
+
+    @Override
+    public Session createSession() {
+        Session session = this.delegate.createSession();
+        return this.enabled ? new CoalescingSession(session, true) : session;
+    }
+
+    @Override
+    public void save(Session session) {
+        if (!(session instanceof CoalescingSession coalescing)) {
+            this.delegate.save(session);
+            return;
+        }
+        Session target = coalescing.session;
+        Instant touchedAt = coalescing.touchedAt;
+        if (touchedAt != null) {
+            boolean significant = Duration.between(target.getLastAccessedTime(), touchedAt)
+                    .compareTo(threshold(target)) >= 0;
+            if (significant || coalescing.dirty) {
+                target.setLastAccessedTime(touchedAt);
+                this.pendingTouches.remove(target.getId());
+                coalescing.dirty = true;
+            } else {
+                this.pendingTouches.merge(target.getId(), touchedAt, (a, b) -> a.isAfter(b) ? a : b);
+                this.coalescedCounter.increment();
+            }
+        }
+        if (coalescing.dirty) {
+            this.delegate.save(target);
+        }
+    }
+
+    @Override
+    public Session findById(String id) {
+        Session session = this.delegate.findById(id);
+        return this.enabled && session != null ? new CoalescingSession(session, false) : session;
+    }
+
+    @Override
+    public void deleteById(String id) {
+        this.pendingTouches.remove(id);
+        this.delegate.deleteById(id);
+    }
+
+    @Override
+    public Map<String, Session> findByIndexNameAndIndexValue(String indexName, String indexValue) {
+        return this.delegate.findByIndexNameAndIndexValue(indexName, indexValue);
+    }
+
+    // The smaller of both limits, so short-lived sessions never lose a noticeable part of their lifetime
+    private Duration threshold(Session session) {
+        Duration fraction = Duration.ofMillis((long) (session.getMaxInactiveInterval().toMillis() * this.maxInactiveFraction));
+        return fraction.compareTo(this.minInterval) < 0 ? fraction : this.minInterval;
+    }
+
+    // The writes bypass the caching layer. A cached snapshot keeps the older access time until its TTL is over,
+    // which at most lets the next touch of the session count as significant a little earlier.
+    public void flush() {
+        Map<String, Instant> batch = new HashMap<>();
+        for (String id : Set.copyOf(this.pendingTouches.keySet())) {
+            Instant touchedAt = this.pendingTouches.remove(id);
+            if (touchedAt != null) {
+                batch.put(id, touchedAt);
+            }
+            if (batch.size() == FLUSH_BATCH_SIZE) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+        flush(batch);
+    }
+
+    private void flush(Map<String, Instant> batch) {
+        try {
+            this.flushedCounter.increment(this.touchWriter.writeAll(batch));
+        } catch (RuntimeException e) {
+            log.warn("Could not flush the access times of {} sessions", batch.size(), e);
+        }
+    }
+
+    // The Redis connection factory is stopped before any bean is destroyed, so the last flush runs when the context closes
+    @EventListener(ContextClosedEvent.class)
+    public void onContextClosed() {
+        if (this.flusher != null) {
+            this.flusher.shutdown();
+            flush();
+        }
+    }
+
+    // Holds back the access time and remembers if anything else about the session changed
+    private static final class CoalescingSession implements Session {
+
+        private final Session session;
+        private boolean dirty;
+        private Instant touchedAt;
+
+        private CoalescingSession(Session session, boolean dirty) {
+            this.session = session;
+            this.dirty = dirty;
+        }
+
+        @Override
+        public String getId() {
+            return this.session.getId();
+        }
+
+        @Override
+        public String changeSessionId() {
+            this.dirty = true;
+            return this.session.changeSessionId();
+        }
+
+        @Override
+        public <T> T getAttribute(String attributeName) {
+            return this.session.getAttribute(attributeName);
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            return this.session.getAttributeNames();
+        }
+
+        @Override
+        public void setAttribute(String attributeName, Object attributeValue) {
+            this.dirty = true;
+            this.session.setAttribute(attributeName, attributeValue);
+        }
+
+        @Override
+        public void removeAttribute(String attributeName) {
+            this.dirty = true;
+            this.session.removeAttribute(attributeName);
+        }
+
+        @Override
+        public Instant getCreationTime() {
+            return this.session.getCreationTime();
+        }
+
+        @Override
+        public void setLastAccessedTime(Instant lastAccessedTime) {
+            this.touchedAt = lastAccessedTime;
+        }
+
+        @Override
+        public Instant getLastAccessedTime() {
+            return this.touchedAt != null ? this.touchedAt : this.session.getLastAccessedTime();
+        }
+
+        @Override
+        public void setMaxInactiveInterval(Duration interval) {
+            this.dirty = true;
+            this.session.setMaxInactiveInterval(interval);
+        }
+
+        @Override
+        public Duration getMaxInactiveInterval() {
+            return this.session.getMaxInactiveInterval();
+        }
+
+        @Override
+        public boolean isExpired() {
+            return this.session.isExpired();
+        }
+    }
+}
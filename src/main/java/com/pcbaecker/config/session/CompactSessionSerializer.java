@@ -0,0 +1,191 @@
+package com.pcbaecker.config.session;
+
+import com.pcbaecker.config.security.RoleAuthenticationToken;
+import com.pcbaecker.domain.users.User;
+import com.pcbaecker.domain.users.UserRole;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextImpl;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Writes the session values we know about (strings, numbers and the security context) in a small binary format.
+// The security context only keeps id, username and authorities of the principal instead of the whole JPA entity.
+// Everything else, and every value written before this serializer existed, still goes through JDK serialization.
+public class CompactSessionSerializer implements RedisSerializer<Object> {
+
+    private static final byte MAGIC = (byte) 0xC5;
+    // Every JDK serialization stream starts with 0xACED, so we can always tell both formats apart
+    private static final byte JDK_MAGIC = (byte) 0xAC;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_INTEGER = 3;
+    // Sessions written before the role bits were stored, they are computed from the authorities on read
+    private static final byte TYPE_SECURITY_CONTEXT = 4;
+    private static final byte TYPE_ROLE_SECURITY_CONTEXT = 5;
+
+    private final JdkSerializationRedisSerializer jdk;
+    private final double savingsSampleRate;
+    private final DistributionSummary compactSize;
+    private final DistributionSummary jdkSize;
+    private final DistributionSummary bytesSaved;
+
+    public CompactSessionSerializer(ClassLoader classLoader, MeterRegistry meterRegistry, double savingsSampleRate) {
+        this.jdk = new JdkSerializationRedisSerializer(classLoader);
+        this.savingsSampleRate = savingsSampleRate;
+        this.compactSize = sizeSummary(meterRegistry, "compact");
+        this.jdkSize = sizeSummary(meterRegistry, "jdk");
+        this.bytesSaved = DistributionSummary.builder("session.attribute.bytes.saved")
+                .description("Bytes saved per session attribute compared to JDK serialization (sampled)")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    private static DistributionSummary sizeSummary(MeterRegistry meterRegistry, String codec) {
+        return DistributionSummary.builder("session.attribute.bytes")
+                .description("Serialized size of session attributes")
+                .baseUnit("bytes")
+                .tag("codec", codec)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public byte[] serialize(Object value) throws SerializationException {
+        if (value == null) {
+            return new byte[0];
+        }
+        byte[] compact = writeCompact(value);
+        if (compact == null) {
+            byte[] serialized = this.jdk.serialize(value);
+            this.jdkSize.record(serialized.length);
+            return serialized;
+        }
+        this.compactSize.record(compact.length);
+        if (ThreadLocalRandom.current().nextDouble() < this.savingsSampleRate) {
+            this.bytesSaved.record(this.jdk.serialize(value).length - compact.length);
+        }
+        return compact;
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        if (bytes[0] == JDK_MAGIC) {
+            return this.jdk.deserialize(bytes);
+        }
+        if (bytes[0] != MAGIC || bytes.length < 2) {
+            throw new SerializationException("Unknown session attribute format");
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 2, bytes.length - 2))) {
+            return switch (bytes[1]) {
+                case TYPE_STRING -> readString(in);
+                case TYPE_LONG -> in.readLong();
+                case TYPE_INTEGER -> in.readInt();
+                case TYPE_SECURITY_CONTEXT -> readSecurityContext(in, false);
+                case TYPE_ROLE_SECURITY_CONTEXT -> readSecurityContext(in, true);
+                default -> throw new SerializationException("Unknown session attribute type " + bytes[1]);
+            };
+        } catch (IOException e) {
+            throw new SerializationException("Cannot read session attribute", e);
+        }
+    }
+
+    private byte[] writeCompact(Object value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(MAGIC);
+            if (value instanceof String s) {
+                out.writeByte(TYPE_STRING);
+                writeString(out, s);
+            } else if (value instanceof Long l) {
+                out.writeByte(TYPE_LONG);
+                out.writeLong(l);
+            } else if (value instanceof Integer i) {
+                out.writeByte(TYPE_INTEGER);
+                out.writeInt(i);
+            } else if (value instanceof SecurityContext sc && isCompactable(sc)) {
+                out.writeByte(TYPE_ROLE_SECURITY_CONTEXT);
+                writeSecurityContext(out, sc);
+            } else {
+                return null;
+            }
+        } catch (IOException e) {
+            throw new SerializationException("Cannot write session attribute", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // We only know how to rebuild logins done through the authentication manager, everything else keeps all its details
+    private static boolean isCompactable(SecurityContext sc) {
+        Authentication auth = sc.getAuthentication();
+        return auth != null
+                && (auth.getClass() == RoleAuthenticationToken.class || auth.getClass() == UsernamePasswordAuthenticationToken.class)
+                && auth.isAuthenticated()
+                && auth.getPrincipal() instanceof User;
+    }
+
+    private static void writeSecurityContext(DataOutputStream out, SecurityContext sc) throws IOException {
+        Authentication auth = sc.getAuthentication();
+        User user = (User) auth.getPrincipal();
+        out.writeBoolean(user.getId() != null);
+        if (user.getId() != null) {
+            out.writeLong(user.getId());
+        }
+        writeString(out, user.getUsername());
+        out.writeShort(auth.getAuthorities().size());
+        for (GrantedAuthority authority : auth.getAuthorities()) {
+            writeString(out, authority.getAuthority());
+        }
+        // The bits are computed once at login, reading a session does not have to walk the authorities again
+        out.writeLong(auth instanceof RoleAuthenticationToken token ? token.getRoleBits() : UserRole.bits(auth.getAuthorities()));
+    }
+
+    private static SecurityContext readSecurityContext(DataInputStream in, boolean withRoleBits) throws IOException {
+        Long id = in.readBoolean() ? in.readLong() : null;
+        String username = readString(in);
+        int count = in.readUnsignedShort();
+        List<String> roles = new ArrayList<>(count);
+        List<GrantedAuthority> authorities = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String role = readString(in);
+            roles.add(role);
+            authorities.add(UserRole.toAuthority(role));
+        }
+        // The principal is a detached user without password, it is only meant to identify the logged-in user
+        User principal = User.builder()
+                .id(id)
+                .username(username)
+                .roles(roles)
+                .build();
+        if (!withRoleBits) {
+            return new SecurityContextImpl(new RoleAuthenticationToken(principal, null, authorities));
+        }
+        return new SecurityContextImpl(new RoleAuthenticationToken(principal, null, authorities, in.readLong()));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] utf8 = new byte[in.readInt()];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
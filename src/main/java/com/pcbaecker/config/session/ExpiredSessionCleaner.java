@@ -0,0 +1,303 @@
+package com.pcbaecker.config.session;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.session.data.redis.RedisIndexedSessionRepository;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+// Replaces the minutely bulk sweep of Spring Session with small steps spread over time. Every tick works for at most
+// the time budget and does three things, each in batches with pipelined round trips:
+// - touches the expiry keys of the due expiration buckets, so Redis fires the expired events on time
+// - removes dead session ids from the principal index sets, found with SCAN and walked with SSCAN
+// - removes expired entries from the session metadata hashes, found with SCAN
+// The scans keep their cursor between ticks, so a large keyspace is walked a little at a time.
+@Component
+public class ExpiredSessionCleaner {
+
+    private static final Logger log = LoggerFactory.getLogger(ExpiredSessionCleaner.class);
+
+    private static final String NAMESPACE = RedisIndexedSessionRepository.DEFAULT_NAMESPACE + ":";
+    private static final String SESSIONS_PREFIX = NAMESPACE + "sessions:";
+    private static final String EXPIRATIONS_PREFIX = NAMESPACE + "expirations:";
+    private static final String INDEX_PREFIX = NAMESPACE + "index:";
+    private static final String LAST_ACCESSED_TIME = "lastAccessedTime";
+    private static final String MAX_INACTIVE_INTERVAL = "maxInactiveInterval";
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    // A single SCAN step. The cursor of Spring Data keeps scanning until it finds a matching key,
+    // which can walk the whole keyspace at once when few keys match.
+    private static final RedisScript<List> SCAN = RedisScript.of(
+            "return redis.call('SCAN', ARGV[1], 'MATCH', ARGV[2], 'COUNT', ARGV[3])", List.class);
+    // The same for the members of a set, an index set of a principal with many sessions is walked in batches
+    private static final RedisScript<List> SSCAN = RedisScript.of(
+            "return redis.call('SSCAN', KEYS[1], ARGV[1], 'COUNT', ARGV[2])", List.class);
+
+    private final RedisOperations<String, Object> sessionRedis;
+    private final StringRedisTemplate redis;
+    private final SessionMetadataIndex metadataIndex;
+    private final long timeBudgetNanos;
+    private final long passIntervalMillis;
+    private final int batchSize;
+    private final Timer tickTimer;
+    private final Counter expiredCounter;
+    private final List<ScanSweep> sweeps;
+    private final Counter indexRemovedCounter;
+    // Principal index sets found by the scan, each with its SSCAN cursor. Only the cleanup thread touches them.
+    private final Deque<IndexCursor> indexCursors = new ArrayDeque<>();
+    private final ScheduledExecutorService scheduler;
+    // The expiration bucket that is due next, buckets are named after the minute their sessions expire in
+    private volatile long nextBucket;
+
+    public ExpiredSessionCleaner(
+            RedisIndexedSessionRepository sessionRepository,
+            StringRedisTemplate redis,
+            SessionMetadataIndex metadataIndex,
+            MeterRegistry meterRegistry,
+            @Value("${app.session.cleanup.enabled:true}") boolean enabled,
+            @Value("${app.session.cleanup.interval:PT1S}") Duration interval,
+            @Value("${app.session.cleanup.time-budget:PT0.02S}") Duration timeBudget,
+            @Value("${app.session.cleanup.pass-interval:PT1M}") Duration passInterval,
+            @Value("${app.session.cleanup.batch-size:100}") int batchSize) {
+        this.sessionRedis = sessionRepository.getSessionRedisOperations();
+        this.redis = redis;
+        this.metadataIndex = metadataIndex;
+        this.timeBudgetNanos = timeBudget.toNanos();
+        this.passIntervalMillis = passInterval.toMillis();
+        this.batchSize = batchSize;
+        this.nextBucket = System.currentTimeMillis() / MINUTE * MINUTE;
+        this.tickTimer = Timer.builder("session.cleanup.tick")
+                .description("Time spent per cleanup tick, bounded by the time budget plus one batch")
+                .register(meterRegistry);
+        this.expiredCounter = removedCounter(meterRegistry, "expirations");
+        this.indexRemovedCounter = removedCounter(meterRegistry, "principal-index");
+        this.sweeps = List.of(
+                // The scan only collects the index sets, it goes on once their members are checked
+                new ScanSweep(meterRegistry, "principal-index", INDEX_PREFIX + "*", this.indexCursors::isEmpty, keys -> {
+                    keys.forEach(key -> this.indexCursors.add(new IndexCursor(key)));
+                    return 0;
+                }),
+                new ScanSweep(meterRegistry, "metadata-index", SessionMetadataIndex.KEY_PREFIX + "*", () -> true,
+                        this.metadataIndex::removeExpired));
+        // How far the due expiration buckets are behind the clock
+        Gauge.builder("session.cleanup.lag", this, c -> Math.max(0, System.currentTimeMillis() - c.nextBucket) / 1000.0)
+                .description("Seconds the cleanup is behind, for the scans since the start of the last finished pass")
+                .tag("kind", "expirations")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        if (enabled) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("session-cleanup-"));
+            this.scheduler.scheduleWithFixedDelay(this::tick, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            this.scheduler = null;
+        }
+    }
+
+    @EventListener(ContextClosedEvent.class)
+    public void onContextClosed() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+    }
+
+    // Synchronized, so a tick run by hand (like in tests) does not interleave with the scheduled ones
+    public synchronized void tick() {
+        final long started = System.nanoTime();
+        final long deadline = started + this.timeBudgetNanos;
+        try {
+            // Round robin, so a long scan cannot starve the expirations that are due
+            boolean worked = true;
+            while (worked && System.nanoTime() < deadline) {
+                worked = expireDueBucket();
+                worked |= removeDeadSessionIds();
+                for (ScanSweep sweep : this.sweeps) {
+                    worked |= sweep.step();
+                }
+            }
+        } catch (RuntimeException e) {
+            // The scan cursors are kept, the next tick goes on where this one stopped
+            log.warn("Session cleanup failed, retrying with the next tick", e);
+        } finally {
+            this.tickTimer.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Takes a batch of sessions out of the due bucket and touches their expiry keys. Redis expires keys lazily,
+    // the touch makes sure the expired event and with it the cleanup of Spring Session happens now.
+    // Returns false when no bucket is due.
+    private boolean expireDueBucket() {
+        final long bucket = this.nextBucket;
+        if (bucket > System.currentTimeMillis()) {
+            return false;
+        }
+        List<Object> members = this.sessionRedis.opsForSet().pop(EXPIRATIONS_PREFIX + bucket, this.batchSize);
+        if (members != null && !members.isEmpty()) {
+            pipelined(operations -> members.forEach(member -> operations.hasKey(SESSIONS_PREFIX + member)));
+            this.expiredCounter.increment(members.size());
+        }
+        if (members == null || members.size() < this.batchSize) {
+            this.nextBucket = bucket + MINUTE;
+        }
+        return true;
+    }
+
+    // Checks one batch of members of the next index set. A session id in an index set is dead when its session hash
+    // is gone or its last access is too long ago. Returns false when no index set is waiting.
+    @SuppressWarnings("unchecked")
+    private boolean removeDeadSessionIds() {
+        IndexCursor index = this.indexCursors.peek();
+        if (index == null) {
+            return false;
+        }
+        // The members stay raw, so they are removed in the format they were written in
+        List<Object> result = this.sessionRedis.execute(SSCAN, RedisSerializer.string(), (RedisSerializer) RedisSerializer.byteArray(),
+                List.of(index.key), index.cursor, String.valueOf(this.batchSize));
+        index.cursor = new String((byte[]) result.get(0), StandardCharsets.UTF_8);
+        if ("0".equals(index.cursor)) {
+            this.indexCursors.poll();
+        }
+        List<byte[]> members = (List<byte[]>) result.get(1);
+        if (members.isEmpty()) {
+            return true;
+        }
+
+        RedisSerializer<?> valueSerializer = this.sessionRedis.getValueSerializer();
+        List<Object> states = pipelined(operations -> members.forEach(member -> operations.opsForHash()
+                .multiGet(SESSIONS_PREFIX + valueSerializer.deserialize(member), List.of(LAST_ACCESSED_TIME, MAX_INACTIVE_INTERVAL))));
+        final long now = System.currentTimeMillis();
+        List<byte[]> dead = new ArrayList<>();
+        for (int i = 0; i < members.size(); i++) {
+            if (isDead((List<?>) states.get(i), now)) {
+                dead.add(members.get(i));
+            }
+        }
+        if (!dead.isEmpty()) {
+            final byte[] key = index.key.getBytes(StandardCharsets.UTF_8);
+            this.sessionRedis.execute((RedisCallback<Long>) connection ->
+                    connection.setCommands().sRem(key, dead.toArray(byte[][]::new)));
+            this.indexRemovedCounter.increment(dead.size());
+        }
+        return true;
+    }
+
+    private static boolean isDead(List<?> state, long now) {
+        if (state == null || !(state.get(0) instanceof Number lastAccessedTime)) {
+            return true;
+        }
+        if (!(state.get(1) instanceof Number maxInactiveSeconds) || maxInactiveSeconds.longValue() < 0) {
+            return false;
+        }
+        return lastAccessedTime.longValue() + TimeUnit.SECONDS.toMillis(maxInactiveSeconds.longValue()) < now;
+    }
+
+    // The session operations serialize values with the session serializer, which is how the index sets and
+    // expiration buckets are written
+    @SuppressWarnings("unchecked")
+    private List<Object> pipelined(Consumer<RedisOperations<String, Object>> commands) {
+        return this.sessionRedis.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                commands.accept((RedisOperations<String, Object>) operations);
+                return null;
+            }
+        });
+    }
+
+    private static final class IndexCursor {
+
+        private final String key;
+        private String cursor = "0";
+
+        private IndexCursor(String key) {
+            this.key = key;
+        }
+    }
+
+    private static Counter removedCounter(MeterRegistry meterRegistry, String kind) {
+        return Counter.builder("session.cleanup.removed")
+                .description("Dead entries removed by the incremental session cleanup")
+                .tag("kind", kind)
+                .register(meterRegistry);
+    }
+
+    // Walks the keys matching the pattern with SCAN, one batch per step, and starts a new pass at most once
+    // per pass interval
+    private final class ScanSweep {
+
+        private final String pattern;
+        private final BooleanSupplier ready;
+        private final ToLongFunction<List<String>> cleanup;
+        private final Counter removed;
+        private String cursor;
+        private long passStartedAt;
+        private volatile long lastPassStartedAt = System.currentTimeMillis();
+
+        private ScanSweep(MeterRegistry meterRegistry, String kind, String pattern, BooleanSupplier ready,
+                          ToLongFunction<List<String>> cleanup) {
+            this.pattern = pattern;
+            this.ready = ready;
+            this.cleanup = cleanup;
+            this.removed = removedCounter(meterRegistry, kind);
+            Gauge.builder("session.cleanup.lag", this, s -> (System.currentTimeMillis() - s.lastPassStartedAt) / 1000.0)
+                    .description("Seconds the cleanup is behind, for the scans since the start of the last finished pass")
+                    .tag("kind", kind)
+                    .baseUnit("seconds")
+                    .register(meterRegistry);
+        }
+
+        // Returns false when there is nothing to do before the next pass is due
+        @SuppressWarnings("unchecked")
+        boolean step() {
+            if (!this.ready.getAsBoolean()) {
+                return false;
+            }
+            final long now = System.currentTimeMillis();
+            if (this.cursor == null) {
+                if (now - this.passStartedAt < passIntervalMillis) {
+                    return false;
+                }
+                this.cursor = "0";
+                this.passStartedAt = now;
+            }
+            List<Object> result = redis.execute(SCAN, List.of(), this.cursor, this.pattern, String.valueOf(batchSize));
+            List<String> keys = (List<String>) result.get(1);
+            if (!keys.isEmpty()) {
+                long removed = this.cleanup.applyAsLong(keys);
+                if (removed > 0) {
+                    this.removed.increment(removed);
+                }
+            }
+            this.cursor = (String) result.get(0);
+            if ("0".equals(this.cursor)) {
+                this.cursor = null;
+                this.lastPassStartedAt = this.passStartedAt;
+            }
+            return true;
+        }
+    }
+}
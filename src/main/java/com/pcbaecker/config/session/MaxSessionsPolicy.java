@@ -0,0 +1,44 @@
+package com.pcbaecker.config.session;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.Session;
+import org.springframework.stereotype.Component;
+
+// Caps the sessions a principal can have at the same time. On login the least recently used sessions beyond the
+// cap are evicted, the metadata index decides which ones in a single script, then the sessions are deleted.
+@Component
+public class MaxSessionsPolicy {
+
+    private final FindByIndexNameSessionRepository<? extends Session> sessions;
+    private final SessionMetadataIndex metadataIndex;
+    private final int maxSessionsPerUser;
+    private final Counter evicted;
+
+    public MaxSessionsPolicy(
+            FindByIndexNameSessionRepository<? extends Session> sessions,
+            SessionMetadataIndex metadataIndex,
+            MeterRegistry meterRegistry,
+            @Value("${app.session.max-sessions-per-user:100}") int maxSessionsPerUser) {
+        this.sessions = sessions;
+        this.metadataIndex = metadataIndex;
+        this.maxSessionsPerUser = maxSessionsPerUser;
+        this.evicted = Counter.builder("session.evicted")
+                .description("Sessions ended because their principal logged in more often than allowed")
+                .register(meterRegistry);
+    }
+
+    // The current session counts as one, even when it is not saved yet, and is never evicted
+    public void enforce(String principalName, String currentSessionId) {
+        if (this.maxSessionsPerUser <= 0) {
+            return;
+        }
+        for (String id : this.metadataIndex.evictLeastRecentlyUsed(principalName,
+                SessionIdHash.of(currentSessionId), this.maxSessionsPerUser - 1)) {
+            this.sessions.deleteById(id);
+            this.evicted.increment();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.pcbaecker.config.session;
+
+import com.pcbaecker.config.security.SessionRestController;
+import org.springframework.context.event.EventListener;
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.PrincipalNameIndexResolver;
+import org.springframework.session.Session;
+import org.springframework.session.events.SessionDestroyedEvent;
+
+import java.util.Map;
+
+// Keeps the SessionMetadataIndex in sync with the sessions: every saved session is written to it,
+// deleted and expired sessions are removed from it. Entries are keyed by the hashed session id.
+public class MetadataIndexingSessionRepository implements FindByIndexNameSessionRepository<Session> {
+
+    private final FindByIndexNameSessionRepository<Session> delegate;
+    private final SessionMetadataIndex metadataIndex;
+    private final PrincipalNameIndexResolver<Session> principalNameResolver = new PrincipalNameIndexResolver<>();
+
+    // The delegate only ever gets back the sessions it created itself, so the cast is safe
+    @SuppressWarnings("unchecked")
+    public MetadataIndexingSessionRepository(FindByIndexNameSessionRepository<? extends Session> delegate, SessionMetadataIndex metadataIndex) {
+        this.delegate = (FindByIndexNameSessionRepository<Session>) delegate;
+        this.metadataIndex = metadataIndex;
+    }
+
+    @Override
+    public Session createSession() {
+        return this.delegate.createSession();
+    }
+
+    @Override
+    public void save(Session session) {
+        String principalName = this.principalNameResolver.resolveIndexValueFor(session);
+        // Resolve the hash before saving, so a freshly computed one is stored with the session
+        String hashedId = principalName != null ? SessionIdHash.of(session) : null;
+        this.delegate.save(session);
+        if (principalName != null) {
+            this.metadataIndex.put(principalName, new SessionMetadataIndex.SessionMetadata(
+                    hashedId,
+                    session.getId(),
+                    session.getAttribute(SessionRestController.USER_AGENT),
+                    session.getCreationTime(),
+                    session.getLastAccessedTime(),
+                    session.getMaxInactiveInterval()));
+        }
+    }
+
+    @Override
+    public Session findById(String id) {
+        return this.delegate.findById(id);
+    }
+
+    @Override
+    public void deleteById(String id) {
+        Session session = this.delegate.findById(id);
+        this.delegate.deleteById(id);
+        if (session != null) {
+            removeFromIndex(session);
+        }
+    }
+
+    @Override
+    public Map<String, Session> findByIndexNameAndIndexValue(String indexName, String indexValue) {
+        return this.delegate.findByIndexNameAndIndexValue(indexName, indexValue);
+    }
+
+    // Covers sessions that expire in Redis or are deleted on another node
+    @EventListener
+    public void onSessionDestroyed(SessionDestroyedEvent event) {
+        if (event.getSession() != null) {
+            removeFromIndex(event.getSession());
+        }
+    }
+
+    private void removeFromIndex(Session session) {
+        String principalName = this.principalNameResolver.resolveIndexValueFor(session);
+        if (principalName != null) {
+            this.metadataIndex.remove(principalName, SessionIdHash.of(session));
+        }
+    }
+}
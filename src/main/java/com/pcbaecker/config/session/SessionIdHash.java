@@ -0,0 +1,29 @@
+package com.pcbaecker.config.session;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.springframework.session.Session;
+
+// Clients never see real session ids, only their sha256. We compute it once per session id and keep it in the session.
+final class SessionIdHash {
+
+    static final String ATTRIBUTE = "SESSION_ID_HASH";
+
+    private SessionIdHash() {
+    }
+
+    static String of(Session session) {
+        // The attribute remembers which id it was computed for, so a changed session id gets a new hash
+        final String prefix = session.getId() + ":";
+        String stored = session.getAttribute(ATTRIBUTE);
+        if (stored != null && stored.startsWith(prefix)) {
+            return stored.substring(prefix.length());
+        }
+        String hash = of(session.getId());
+        session.setAttribute(ATTRIBUTE, prefix + hash);
+        return hash;
+    }
+
+    static String of(String sessionId) {
+        return DigestUtils.sha256Hex(sessionId);
+    }
+}
@@ -0,0 +1,212 @@
+package com.pcbaecker.config.session;
+
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+// Keeps the few values GET /sessions shows in one small hash per principal, so listing the sessions of a user
+// is a single HGETALL instead of loading and deserializing every full session.
+// The fields are the hashed session ids, so the hash also maps the ids clients see back to the real session ids.
+@Component
+public class SessionMetadataIndex {
+
+    static final String KEY_PREFIX = "spring:session:meta:";
+    // The hash has to survive its youngest session, a little longer does not hurt
+    private static final Duration KEY_TTL_MARGIN = Duration.ofMinutes(5);
+    // Writes the entry and only ever extends the expiry of the hash, so it lives as long as its longest living session.
+    // A session that never expires makes the hash persistent, it stays that way until the hash is empty.
+    // KEYS[1] the hash, ARGV[1] the hashed id, ARGV[2] the entry, ARGV[3] the TTL in milliseconds or -1 for none
+    private static final RedisScript<Void> PUT = RedisScript.of("""
+            local current = redis.call('PTTL', KEYS[1])
+            redis.call('HSET', KEYS[1], ARGV[1], ARGV[2])
+            local ttl = tonumber(ARGV[3])
+            if ttl < 0 then
+                redis.call('PERSIST', KEYS[1])
+            elseif current == -2 or (current >= 0 and current < ttl) then
+                redis.call('PEXPIRE', KEYS[1], ttl)
+            end
+            """);
+    // Picks and removes the least recently used entries in one step, so two logins at the same time cannot both
+    // count the same sessions and evict more than needed. Expired entries are dropped on the way and never count.
+    // KEYS[1] the hash, ARGV[1] the hashed id that is never evicted, ARGV[2] how many others may stay, ARGV[3] now
+    private static final RedisScript<List> EVICT_LEAST_RECENTLY_USED = RedisScript.of("""
+            local entries = redis.call('HGETALL', KEYS[1])
+            local now = tonumber(ARGV[3])
+            local candidates = {}
+            for i = 1, #entries, 2 do
+                local field = entries[i]
+                if field ~= ARGV[1] then
+                    local lastAccess, maxInactive, id = string.match(entries[i + 1], '^%-?%d+:(%-?%d+):(%-?%d+):([^:]*):')
+                    if id == nil then
+                        redis.call('HDEL', KEYS[1], field)
+                    elseif tonumber(maxInactive) >= 0 and tonumber(lastAccess) + tonumber(maxInactive) * 1000 < now then
+                        redis.call('HDEL', KEYS[1], field)
+                    else
+                        candidates[#candidates + 1] = { field, tonumber(lastAccess), id }
+                    end
+                end
+            end
+            local excess = #candidates - tonumber(ARGV[2])
+            if excess <= 0 then
+                return {}
+            end
+            table.sort(candidates, function(a, b) return a[2] < b[2] end)
+            local evicted = {}
+            for i = 1, excess do
+                redis.call('HDEL', KEYS[1], candidates[i][1])
+                evicted[i] = candidates[i][3]
+            end
+            return evicted
+            """, List.class);
+
+    private final StringRedisTemplate redis;
+
+    public SessionMetadataIndex(StringRedisTemplate redis) {
+        this.redis = redis;
+    }
+
+    public void put(String principalName, SessionMetadata metadata) {
+        this.redis.execute(PUT, List.of(KEY_PREFIX + principalName),
+                metadata.hashedId(), metadata.encode(), String.valueOf(keyTtlMillis(metadata)));
+    }
+
+    // The same as put for many entries, in one pipelined round trip
+    public void putAll(Map<String, List<SessionMetadata>> metadataByPrincipal) {
+        if (metadataByPrincipal.isEmpty()) {
+            return;
+        }
+        final byte[] script = RedisSerializer.string().serialize(PUT.getScriptAsString());
+        this.redis.executePipelined((RedisCallback<Object>) connection -> {
+            metadataByPrincipal.forEach((principalName, entries) -> entries.forEach(metadata ->
+                    connection.scriptingCommands().eval(script, ReturnType.STATUS, 1,
+                            RedisSerializer.string().serialize(KEY_PREFIX + principalName),
+                            RedisSerializer.string().serialize(metadata.hashedId()),
+                            RedisSerializer.string().serialize(metadata.encode()),
+                            RedisSerializer.string().serialize(String.valueOf(keyTtlMillis(metadata))))));
+            return null;
+        });
+    }
+
+    private static long keyTtlMillis(SessionMetadata metadata) {
+        return metadata.maxInactiveInterval().isNegative()
+                ? -1
+                : metadata.maxInactiveInterval().plus(KEY_TTL_MARGIN).toMillis();
+    }
+
+    public void remove(String principalName, String hashedId) {
+        this.redis.opsForHash().delete(KEY_PREFIX + principalName, hashedId);
+    }
+
+    // Only sessions of the given principal can be found, which is what makes the lookup safe for deleting sessions
+    public Optional<SessionMetadata> findByHashedId(String principalName, String hashedId) {
+        Object value = this.redis.opsForHash().get(KEY_PREFIX + principalName, hashedId);
+        return Optional.ofNullable(value)
+                .map(v -> SessionMetadata.decode(hashedId, (String) v))
+                .filter(m -> !m.isExpired(Instant.now()));
+    }
+
+    public List<SessionMetadata> findByPrincipalName(String principalName) {
+        final String key = KEY_PREFIX + principalName;
+        Map<Object, Object> entries = this.redis.opsForHash().entries(key);
+        final Instant now = Instant.now();
+        List<SessionMetadata> alive = new ArrayList<>(entries.size());
+        List<Object> expired = new ArrayList<>();
+        entries.forEach((hashedId, value) -> {
+            SessionMetadata metadata = SessionMetadata.decode((String) hashedId, (String) value);
+            if (metadata.isExpired(now)) {
+                expired.add(hashedId);
+            } else {
+                alive.add(metadata);
+            }
+        });
+        // Sessions that expired without us getting notified are cleaned up lazily
+        if (!expired.isEmpty()) {
+            this.redis.opsForHash().delete(key, expired.toArray());
+        }
+        return alive;
+    }
+
+    // Removes all but the most recently used sessions of the principal from the index and returns their real ids,
+    // deleting the sessions themselves is up to the caller
+    @SuppressWarnings("unchecked")
+    public List<String> evictLeastRecentlyUsed(String principalName, String keepHashedId, int keepOthers) {
+        List<String> evicted = this.redis.execute(EVICT_LEAST_RECENTLY_USED, List.of(KEY_PREFIX + principalName),
+                keepHashedId == null ? "" : keepHashedId,
+                String.valueOf(Math.max(0, keepOthers)),
+                String.valueOf(System.currentTimeMillis()));
+        return evicted == null ? List.of() : evicted;
+    }
+
+    // Drops the expired entries of the given hashes in two pipelined round trips, no matter how many keys there are.
+    // Returns how many entries were removed.
+    @SuppressWarnings("unchecked")
+    long removeExpired(List<String> keys) {
+        List<Object> hashes = this.redis.executePipelined((RedisCallback<Object>) connection -> {
+            keys.forEach(key -> connection.hashCommands().hGetAll(RedisSerializer.string().serialize(key)));
+            return null;
+        });
+        final Instant now = Instant.now();
+        Map<String, List<byte[]>> expired = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            final String key = keys.get(i);
+            ((Map<String, String>) hashes.get(i)).forEach((hashedId, value) -> {
+                if (SessionMetadata.decode(hashedId, value).isExpired(now)) {
+                    expired.computeIfAbsent(key, k -> new ArrayList<>()).add(RedisSerializer.string().serialize(hashedId));
+                }
+            });
+        }
+        if (expired.isEmpty()) {
+            return 0;
+        }
+        this.redis.executePipelined((RedisCallback<Object>) connection -> {
+            expired.forEach((key, fields) ->
+                    connection.hashCommands().hDel(RedisSerializer.string().serialize(key), fields.toArray(byte[][]::new)));
+            return null;
+        });
+        return expired.values().stream().mapToLong(List::size).sum();
+    }
+
+    public record SessionMetadata(
+            String hashedId,
+            String id,
+            String userAgent,
+            Instant creationTime,
+            Instant lastAccessedTime,
+            Duration maxInactiveInterval
+    ) {
+        boolean isExpired(Instant now) {
+            return !this.maxInactiveInterval.isNegative()
+                    && this.lastAccessedTime.plus(this.maxInactiveInterval).isBefore(now);
+        }
+
+        // The user agent can contain anything, so it has to be the last part
+        String encode() {
+            return this.creationTime.toEpochMilli() + ":" + this.lastAccessedTime.toEpochMilli() + ":"
+                    + this.maxInactiveInterval.toSeconds() + ":" + this.id + ":"
+                    + (this.userAgent == null ? "" : this.userAgent);
+        }
+
+        static SessionMetadata decode(String hashedId, String value) {
+            String[] parts = value.split(":", 5);
+            return new SessionMetadata(
+                    hashedId,
+                    parts[3],
+                    parts[4],
+                    Instant.ofEpochMilli(Long.parseLong(parts[0])),
+                    Instant.ofEpochMilli(Long.parseLong(parts[1])),
+                    Duration.ofSeconds(Long.parseLong(parts[2])));
+        }
+    }
+}
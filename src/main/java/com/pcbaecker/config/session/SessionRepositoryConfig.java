@@ -0,0 +1,90 @@
+package com.pcbaecker.config.session;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.session.config.SessionRepositoryCustomizer;
+import org.springframework.session.data.redis.RedisIndexedSessionRepository;
+
+import java.time.Duration;
+
+// Everything that uses the session repository, including the session filter, gets the decorated repository.
+// The decorators are chained: timing -> coalescing -> caching -> metadata indexing -> redis.
+@Configuration
+public class SessionRepositoryConfig {
+
+    // The ExpiredSessionCleaner does the same work in small steps, the minutely bulk sweep is not needed then
+    @Bean
+    SessionRepositoryCustomizer<RedisIndexedSessionRepository> cleanupCronCustomizer(
+            @Value("${app.session.cleanup.enabled:true}") boolean incrementalCleanupEnabled) {
+        return repository -> {
+            if (incrementalCleanupEnabled) {
+                repository.setCleanupCron(Scheduled.CRON_DISABLED);
+            }
+        };
+    }
+
+    @Bean
+    MetadataIndexingSessionRepository metadataIndexingSessionRepository(
+            RedisIndexedSessionRepository sessionRepository,
+            SessionMetadataIndex metadataIndex) {
+        return new MetadataIndexingSessionRepository(sessionRepository, metadataIndex);
+    }
+
+    @Bean
+    CachingSessionRepository cachingSessionRepository(
+            MetadataIndexingSessionRepository metadataIndexingSessionRepository,
+            @Qualifier("springSessionDefaultRedisSerializer") ObjectProvider<RedisSerializer<Object>> sessionSerializer,
+            StringRedisTemplate redis,
+            RedisMessageListenerContainer listenerContainer,
+            MeterRegistry meterRegistry,
+            @Value("${app.session.l1-cache.enabled:true}") boolean enabled,
+            @Value("${app.session.l1-cache.maximum-size:10000}") long maximumSize,
+            @Value("${app.session.l1-cache.ttl:PT5S}") Duration ttl) {
+        CachingSessionRepository repository = new CachingSessionRepository(metadataIndexingSessionRepository,
+                sessionSerializer.getIfAvailable(() -> new JdkSerializationRedisSerializer(getClass().getClassLoader())),
+                redis, meterRegistry, enabled, maximumSize, ttl);
+        listenerContainer.addMessageListener(repository, new ChannelTopic(CachingSessionRepository.INVALIDATION_CHANNEL));
+        return repository;
+    }
+
+    @Bean
+    SessionTouchWriter sessionTouchWriter(
+            RedisIndexedSessionRepository sessionRepository,
+            SessionMetadataIndex metadataIndex) {
+        return new SessionTouchWriter(sessionRepository, metadataIndex);
+    }
+
+    @Bean
+    CoalescingSessionRepository coalescingSessionRepository(
+            CachingSessionRepository cachingSessionRepository,
+            SessionTouchWriter sessionTouchWriter,
+            MeterRegistry meterRegistry,
+            @Value("${app.session.touch-coalescing.enabled:true}") boolean enabled,
+            @Value("${app.session.touch-coalescing.min-interval:PT60S}") Duration minInterval,
+            @Value("${app.session.touch-coalescing.max-inactive-fraction:0.1}") double maxInactiveFraction,
+            @Value("${app.session.touch-coalescing.flush-interval:PT10S}") Duration flushInterval) {
+        return new CoalescingSessionRepository(cachingSessionRepository, sessionTouchWriter, meterRegistry,
+                enabled, minInterval, maxInactiveFraction, flushInterval);
+    }
+
+    @Bean
+    @Primary
+    TimedSessionRepository timedSessionRepository(
+            CoalescingSessionRepository coalescingSessionRepository,
+            MeterRegistry meterRegistry,
+            ObservationRegistry observationRegistry) {
+        return new TimedSessionRepository(coalescingSessionRepository, meterRegistry, observationRegistry);
+    }
+}
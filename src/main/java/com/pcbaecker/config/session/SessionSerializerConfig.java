@@ -0,0 +1,21 @@
+package com.pcbaecker.config.session;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+@Configuration
+public class SessionSerializerConfig {
+
+    // Spring Session picks up the serializer by this bean name, set app.session.serializer=jdk to go back to JDK serialization
+    @Bean("springSessionDefaultRedisSerializer")
+    @ConditionalOnProperty(name = "app.session.serializer", havingValue = "compact", matchIfMissing = true)
+    RedisSerializer<Object> springSessionDefaultRedisSerializer(
+            MeterRegistry meterRegistry,
+            @Value("${app.session.serializer.savings-sample-rate:0.01}") double savingsSampleRate) {
+        return new CompactSessionSerializer(getClass().getClassLoader(), meterRegistry, savingsSampleRate);
+    }
+}
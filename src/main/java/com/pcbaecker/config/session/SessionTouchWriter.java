@@ -0,0 +1,165 @@
+package com.pcbaecker.config.session;
+
+import com.pcbaecker.config.security.SessionRestController;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository;
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.MapSession;
+import org.springframework.session.PrincipalNameIndexResolver;
+import org.springframework.session.Session;
+import org.springframework.session.data.redis.RedisIndexedSessionRepository;
+import org.springframework.session.data.redis.RedisSessionMapper;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Writes the access times of many sessions at once, straight to the keys of Spring Session. One pipelined round trip
+// reads the few fields a touch needs, one writes the access time and the expiry keys like RedisIndexedSessionRepository
+// does for a changed access time, and one writes the metadata entries. Loading and saving every session would
+// take several round trips each.
+public class SessionTouchWriter {
+
+    private static final String NAMESPACE = RedisIndexedSessionRepository.DEFAULT_NAMESPACE + ":";
+    private static final String SESSIONS_PREFIX = NAMESPACE + "sessions:";
+    private static final String EXPIRATIONS_PREFIX = NAMESPACE + "expirations:";
+    private static final String ATTRIBUTE_PREFIX = "sessionAttr:";
+    private static final String LAST_ACCESSED_TIME = "lastAccessedTime";
+    // Everything the expiry keys and the metadata entry are computed from, but none of the other attributes
+    private static final List<String> FIELDS = List.of(
+            "creationTime",
+            LAST_ACCESSED_TIME,
+            "maxInactiveInterval",
+            ATTRIBUTE_PREFIX + FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME,
+            ATTRIBUTE_PREFIX + HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY,
+            ATTRIBUTE_PREFIX + SessionIdHash.ATTRIBUTE,
+            ATTRIBUTE_PREFIX + SessionRestController.USER_AGENT);
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    // Spring Session keeps the session hash and its expiration bucket this much longer than the session lives
+    private static final long KEY_TTL_MARGIN_SECONDS = TimeUnit.MINUTES.toSeconds(5);
+
+    private final RedisOperations<String, Object> sessionRedis;
+    private final SessionMetadataIndex metadataIndex;
+    private final RedisSessionMapper sessionMapper = new RedisSessionMapper();
+    private final PrincipalNameIndexResolver<Session> principalNameResolver = new PrincipalNameIndexResolver<>();
+
+    public SessionTouchWriter(RedisIndexedSessionRepository sessionRepository, SessionMetadataIndex metadataIndex) {
+        this.sessionRedis = sessionRepository.getSessionRedisOperations();
+        this.metadataIndex = metadataIndex;
+    }
+
+    // Sessions that are gone or were accessed later in the meantime are left alone. Returns how many were written.
+    public int writeAll(Map<String, Instant> touches) {
+        if (touches.isEmpty()) {
+            return 0;
+        }
+        List<String> ids = List.copyOf(touches.keySet());
+        List<Object> states = pipelined(operations -> ids.forEach(id ->
+                operations.opsForHash().multiGet(SESSIONS_PREFIX + id, List.copyOf(FIELDS))));
+
+        List<Touch> toWrite = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            MapSession session = toSession(ids.get(i), (List<?>) states.get(i));
+            Instant touchedAt = touches.get(ids.get(i));
+            if (session != null && touchedAt.isAfter(session.getLastAccessedTime())) {
+                toWrite.add(new Touch(session, session.getLastAccessedTime()));
+                session.setLastAccessedTime(touchedAt);
+            }
+        }
+        if (toWrite.isEmpty()) {
+            return 0;
+        }
+
+        pipelined(operations -> toWrite.forEach(touch -> write(operations, touch)));
+        Map<String, List<SessionMetadataIndex.SessionMetadata>> metadata = new LinkedHashMap<>();
+        for (Touch touch : toWrite) {
+            String principalName = this.principalNameResolver.resolveIndexValueFor(touch.session());
+            if (principalName != null) {
+                metadata.computeIfAbsent(principalName, p -> new ArrayList<>()).add(new SessionMetadataIndex.SessionMetadata(
+                        SessionIdHash.of(touch.session()),
+                        touch.session().getId(),
+                        touch.session().getAttribute(SessionRestController.USER_AGENT),
+                        touch.session().getCreationTime(),
+                        touch.session().getLastAccessedTime(),
+                        touch.session().getMaxInactiveInterval()));
+            }
+        }
+        this.metadataIndex.putAll(metadata);
+        return toWrite.size();
+    }
+
+    // Null when the session is gone. The first three fields are always written together with the session.
+    private MapSession toSession(String id, List<?> values) {
+        if (values == null || values.get(0) == null || values.get(1) == null || values.get(2) == null) {
+            return null;
+        }
+        Map<String, Object> entries = new HashMap<>();
+        for (int i = 0; i < FIELDS.size(); i++) {
+            if (values.get(i) != null) {
+                entries.put(FIELDS.get(i), values.get(i));
+            }
+        }
+        return this.sessionMapper.apply(id, entries);
+    }
+
+    // The same writes as RedisIndexedSessionRepository and its expiration policy do for a changed access time
+    private static void write(RedisOperations<String, Object> operations, Touch touch) {
+        final String id = touch.session().getId();
+        final String sessionKey = SESSIONS_PREFIX + id;
+        final String expiresKey = SESSIONS_PREFIX + "expires:" + id;
+        final String bucketMember = "expires:" + id;
+        final long maxInactiveSeconds = touch.session().getMaxInactiveInterval().getSeconds();
+        operations.opsForHash().put(sessionKey, LAST_ACCESSED_TIME, touch.session().getLastAccessedTime().toEpochMilli());
+
+        long previousBucket = bucket(touch.previousAccessedTime(), maxInactiveSeconds);
+        long bucket = bucket(touch.session().getLastAccessedTime(), maxInactiveSeconds);
+        if (bucket != previousBucket) {
+            operations.opsForSet().remove(EXPIRATIONS_PREFIX + previousBucket, bucketMember);
+        }
+        if (maxInactiveSeconds < 0) {
+            operations.opsForValue().append(expiresKey, "");
+            operations.persist(expiresKey);
+            operations.persist(sessionKey);
+            return;
+        }
+        operations.opsForSet().add(EXPIRATIONS_PREFIX + bucket, bucketMember);
+        operations.expire(EXPIRATIONS_PREFIX + bucket, maxInactiveSeconds + KEY_TTL_MARGIN_SECONDS, TimeUnit.SECONDS);
+        if (maxInactiveSeconds == 0) {
+            operations.delete(expiresKey);
+        } else {
+            operations.opsForValue().append(expiresKey, "");
+            operations.expire(expiresKey, maxInactiveSeconds, TimeUnit.SECONDS);
+        }
+        operations.expire(sessionKey, maxInactiveSeconds + KEY_TTL_MARGIN_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // Buckets are named after the minute following the expiry, like Spring Session names them
+    private static long bucket(Instant lastAccessedTime, long maxInactiveSeconds) {
+        long expiresAt = lastAccessedTime.toEpochMilli() + TimeUnit.SECONDS.toMillis(maxInactiveSeconds);
+        return (expiresAt / MINUTE + 1) * MINUTE;
+    }
+
+    // The session operations serialize values with the session serializer, which is how Spring Session writes them
+    @SuppressWarnings("unchecked")
+    private List<Object> pipelined(Consumer<RedisOperations<String, Object>> commands) {
+        return this.sessionRedis.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                commands.accept((RedisOperations<String, Object>) operations);
+                return null;
+            }
+        });
+    }
+
+    private record Touch(
+            MapSession session,
+            Instant previousAccessedTime
+    ) {
+    }
+}
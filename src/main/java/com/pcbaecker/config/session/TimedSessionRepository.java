@@ -0,0 +1,73 @@
+package com.pcbaecker.config.session;
+
+import com.pcbaecker.config.metrics.LoginPhases;
+import com.pcbaecker.config.metrics.RequestMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.observation.ObservationRegistry;
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.Session;
+
+import java.util.Map;
+
+import static org.springframework.security.web.context.HttpSessionSecurityContextRepository.SPRING_SECURITY_CONTEXT_KEY;
+
+// Times the session load and save as the request sees them, with all decorators below included.
+// A loaded session with an authentication marks the request as authenticated, the save at the end of a login
+// is reported as the session-save phase of the login.
+public class TimedSessionRepository implements FindByIndexNameSessionRepository<Session> {
+
+    private final FindByIndexNameSessionRepository<Session> delegate;
+    private final ObservationRegistry observationRegistry;
+    private final Timer loadTimer;
+    private final Timer saveTimer;
+
+    @SuppressWarnings("unchecked")
+    public TimedSessionRepository(
+            FindByIndexNameSessionRepository<? extends Session> delegate,
+            MeterRegistry meterRegistry,
+            ObservationRegistry observationRegistry) {
+        this.delegate = (FindByIndexNameSessionRepository<Session>) delegate;
+        this.observationRegistry = observationRegistry;
+        this.loadTimer = Timer.builder("session.load")
+                .description("Time to load the session of a request")
+                .register(meterRegistry);
+        this.saveTimer = Timer.builder("session.save")
+                .description("Time to save the session at the end of a request")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Session createSession() {
+        return this.delegate.createSession();
+    }
+
+    @Override
+    public void save(Session session) {
+        if (RequestMetrics.takeLogin()) {
+            LoginPhases.observe(this.observationRegistry, LoginPhases.SESSION_SAVE,
+                    () -> this.saveTimer.record(() -> this.delegate.save(session)));
+        } else {
+            this.saveTimer.record(() -> this.delegate.save(session));
+        }
+    }
+
+    @Override
+    public Session findById(String id) {
+        Session session = this.loadTimer.record(() -> this.delegate.findById(id));
+        if (session != null && session.getAttribute(SPRING_SECURITY_CONTEXT_KEY) != null) {
+            RequestMetrics.markAuthenticated();
+        }
+        return session;
+    }
+
+    @Override
+    public void deleteById(String id) {
+        this.delegate.deleteById(id);
+    }
+
+    @Override
+    public Map<String, Session> findByIndexNameAndIndexValue(String indexName, String indexValue) {
+        return this.delegate.findByIndexNameAndIndexValue(indexName, indexValue);
+    }
+}
@@ -0,0 +1,31 @@
+package com.pcbaecker.config.threads;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.scheduling.annotation.AsyncConfigurer;
+import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.security.task.DelegatingSecurityContextAsyncTaskExecutor;
+
+import java.util.concurrent.Executor;
+
+// @Async methods run on the executor of Spring Boot, which uses virtual threads when spring.threads.virtual.enabled
+// is set. The SecurityContextHolder is bound to the calling thread, so we hand the context over to the task.
+@Configuration
+@EnableAsync
+public class AsyncConfig implements AsyncConfigurer {
+
+    private final AsyncTaskExecutor applicationTaskExecutor;
+
+    public AsyncConfig(
+            @Lazy @Qualifier(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME) AsyncTaskExecutor applicationTaskExecutor) {
+        this.applicationTaskExecutor = applicationTaskExecutor;
+    }
+
+    @Override
+    public Executor getAsyncExecutor() {
+        return new DelegatingSecurityContextAsyncTaskExecutor(this.applicationTaskExecutor);
+    }
+}
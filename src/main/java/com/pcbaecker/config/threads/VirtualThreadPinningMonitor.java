@@ -0,0 +1,78 @@
+package com.pcbaecker.config.threads;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A virtual thread that blocks inside a synchronized block (or a native frame) keeps its carrier thread,
+// so a few of them can stall all requests. The JVM reports these as JFR events, we turn them into a timer
+// tagged with the code that held the monitor and log the first stack trace of every such place.
+@Component
+@ConditionalOnThreading(Threading.VIRTUAL)
+@ConditionalOnProperty(name = "app.threads.pinning-monitor.enabled", havingValue = "true", matchIfMissing = true)
+public class VirtualThreadPinningMonitor implements DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadPinningMonitor.class);
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    private static final List<String> JDK_PACKAGES = List.of("java.", "javax.", "jdk.", "sun.");
+
+    private final MeterRegistry meterRegistry;
+    private final RecordingStream stream;
+    private final Set<String> reportedFrames = ConcurrentHashMap.newKeySet();
+
+    public VirtualThreadPinningMonitor(
+            MeterRegistry meterRegistry,
+            @Value("${app.threads.pinning-monitor.threshold:PT0.02S}") Duration threshold) {
+        this.meterRegistry = meterRegistry;
+        this.stream = new RecordingStream();
+        this.stream.enable(PINNED_EVENT).withThreshold(threshold).withStackTrace();
+        this.stream.onEvent(PINNED_EVENT, this::onPinned);
+        this.stream.startAsync();
+    }
+
+    private void onPinned(RecordedEvent event) {
+        String frame = firstApplicationFrame(event);
+        Timer.builder("virtual.threads.pinned")
+                .description("Time virtual threads were pinned to their carrier while blocked")
+                .tag("frame", frame)
+                .register(this.meterRegistry)
+                .record(event.getDuration());
+        if (this.reportedFrames.add(frame)) {
+            log.warn("Virtual thread was pinned for {} in {}\n{}", event.getDuration(), frame, event.getStackTrace());
+        }
+    }
+
+    // The JDK frames on top are always the same park/wait calls, the interesting part is the library below them
+    private static String firstApplicationFrame(RecordedEvent event) {
+        if (event.getStackTrace() == null) {
+            return "unknown";
+        }
+        for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+            String type = frame.getMethod().getType().getName();
+            if (JDK_PACKAGES.stream().noneMatch(type::startsWith)) {
+                return type + "." + frame.getMethod().getName();
+            }
+        }
+        return "unknown";
+    }
+
+    @Override
+    public void destroy() {
+        this.stream.close();
+    }
+}
@@ -9,15 +9,18 @@ import lombok.Setter;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "books")
+@Table(name = "books", indexes = @Index(name = "books_updated_at_idx", columnList = "updated_at"))
+@EntityListeners(BookEntityListener.class)
 @Getter
 @Setter
 @AllArgsConstructor
 @NoArgsConstructor
 public class Book {
 
+    // Hibernate takes 50 ids per sequence call, so batch inserts do not need a round-trip per book
     @Id
-    @GeneratedValue(strategy = GenerationType.SEQUENCE)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "books_seq")
+    @SequenceGenerator(name = "books_seq", sequenceName = "books_seq", allocationSize = 50)
     private Long id;
 
     @Column(name = "title", nullable = false, unique = true)
@@ -0,0 +1,113 @@
+package com.pcbaecker.domain.books;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+// Books are read far more often than they change, so we keep them in memory by id.
+// Every committed update drops the book here and, over Redis, on the other nodes. The use case puts the
+// fresh book back after its own writes.
+@Component
+public class BookCache implements MessageListener {
+
+    private static final String INVALIDATION_CHANNEL = "books:cache-invalidation";
+
+    private final AsyncCache<Long, Book> books;
+    private final StringRedisTemplate redis;
+    private final boolean crossNodeInvalidation;
+    // Lets us ignore our own invalidation messages
+    private final String nodeId = UUID.randomUUID().toString();
+
+    public BookCache(
+            MeterRegistry meterRegistry,
+            StringRedisTemplate redis,
+            RedisMessageListenerContainer listenerContainer,
+            @Value("${app.books.cache.maximum-size:10000}") long maximumSize,
+            @Value("${app.books.cache.ttl:PT10M}") Duration ttl,
+            @Value("${app.books.cache.cross-node-invalidation:true}") boolean crossNodeInvalidation) {
+        this.books = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .buildAsync();
+        this.redis = redis;
+        this.crossNodeInvalidation = crossNodeInvalidation;
+        CaffeineCacheMetrics.monitor(meterRegistry, this.books, "books");
+        if (crossNodeInvalidation) {
+            listenerContainer.addMessageListener(this, new ChannelTopic(INVALIDATION_CHANNEL));
+        }
+    }
+
+    // The loader runs outside of Caffeine's compute, which holds a monitor: a database call in there would pin a
+    // virtual thread to its carrier. Concurrent reads of the same book still share one load through the future.
+    public Book get(Long id, Function<Long, Book> loader) {
+        CompletableFuture<Book> loading = new CompletableFuture<>();
+        CompletableFuture<Book> cached = this.books.get(id, (key, executor) -> loading);
+        if (cached == loading) {
+            try {
+                loading.complete(copy(loader.apply(id)));
+            } catch (RuntimeException e) {
+                loading.completeExceptionally(e);
+            }
+        }
+        try {
+            return copy(cached.join());
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    // Never waits for a load that is still running
+    public Book getIfPresent(Long id) {
+        CompletableFuture<Book> cached = this.books.getIfPresent(id);
+        if (cached == null || !cached.isDone() || cached.isCompletedExceptionally()) {
+            return null;
+        }
+        return copy(cached.join());
+    }
+
+    public void put(Book book) {
+        this.books.put(book.getId(), CompletableFuture.completedFuture(copy(book)));
+    }
+
+    // Runs after the commit, otherwise a concurrent read could put the old state back into the cache
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onBookChanged(BookChangedEvent event) {
+        this.books.synchronous().invalidate(event.id());
+        if (this.crossNodeInvalidation) {
+            this.redis.convertAndSend(INVALIDATION_CHANNEL, this.nodeId + ":" + event.id());
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] body = new String(message.getBody(), StandardCharsets.UTF_8).split(":", 2);
+        if (body.length == 2 && !this.nodeId.equals(body[0])) {
+            this.books.synchronous().invalidate(Long.valueOf(body[1]));
+        }
+    }
+
+    // Books are mutable entities, nobody outside may hold the instance in the cache
+    private static Book copy(Book book) {
+        if (book == null) {
+            return null;
+        }
+        return new Book(book.getId(), book.getTitle(), book.getAuthor(), book.getUpdatedAt(), book.getCreatedAt());
+    }
+}
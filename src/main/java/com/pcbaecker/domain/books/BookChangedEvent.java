@@ -0,0 +1,6 @@
+package com.pcbaecker.domain.books;
+
+public record BookChangedEvent(
+        Long id
+) {
+}
@@ -0,0 +1,23 @@
+package com.pcbaecker.domain.books;
+
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+
+// New books cannot be stale anywhere, so only updates and removals are announced
+@Component
+public class BookEntityListener {
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    public BookEntityListener(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    @PostUpdate
+    @PostRemove
+    public void onBookChanged(Book book) {
+        this.eventPublisher.publishEvent(new BookChangedEvent(book.getId()));
+    }
+}
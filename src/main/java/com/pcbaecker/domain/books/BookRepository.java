@@ -1,8 +1,51 @@
 package com.pcbaecker.domain.books;
 
+import jakarta.persistence.QueryHint;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.PagingAndSortingRepository;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.HibernateHints.HINT_FETCH_SIZE;
+import static org.hibernate.jpa.HibernateHints.HINT_READ_ONLY;
+
 public interface BookRepository extends PagingAndSortingRepository<Book, Long>, CrudRepository<Book,Long> {
 
+    // Keyset pagination: every page starts right after the last id of the previous one, so there is no OFFSET
+    List<Book> findByIdGreaterThanOrderByIdAsc(Long id, Limit limit);
+
+    List<Book> findAllByOrderByIdAsc(Limit limit);
+
+    @Query("SELECT b.updatedAt FROM Book b WHERE b.id = ?1")
+    Optional<LocalDateTime> findUpdatedAtById(Long id);
+
+    // The maximums come straight from an index, the count walks the primary key index. That is still much less
+    // than loading every book, which is what it saves conditional requests for the whole catalog from.
+    @Query("SELECT new com.pcbaecker.domain.books.CatalogVersion(COUNT(b), MAX(b.id), MAX(b.updatedAt)) FROM Book b")
+    CatalogVersion findCatalogVersion();
+
+    @Query("SELECT b.title FROM Book b WHERE b.title IN ?1")
+    Set<String> findTitlesIn(Collection<String> titles);
+
+    // Uses the books_search_idx GIN index from schema.sql, the expression has to match the index exactly
+    @Query(value = "SELECT * FROM books WHERE to_tsvector('simple', title || ' ' || author) @@ to_tsquery('simple', ?1) "
+            + "AND id > ?2 ORDER BY id LIMIT ?3", nativeQuery = true)
+    List<Book> search(String tsQuery, long afterId, int limit);
+
+    // Reads with a server side cursor, must be consumed inside a transaction
+    @QueryHints({
+            @QueryHint(name = HINT_FETCH_SIZE, value = "1000"),
+            @QueryHint(name = HINT_READ_ONLY, value = "true")
+    })
+    @Query("SELECT b FROM Book b ORDER BY b.id")
+    Stream<Book> streamAllOrderById();
+
 }
@@ -1,34 +1,172 @@
 package com.pcbaecker.domain.books;
 
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pcbaecker.config.UntilInvalidJson;
 import com.pcbaecker.config.security.UserHasRolePublisher;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.annotation.Secured;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.StreamSupport;
 
 @RestController
 @RequestMapping("books")
 public class BookRestController {
 
+    private static final int EXPORT_FLUSH_INTERVAL = 100;
+
     private final BookUsercase usecase;
+    private final ObjectMapper objectMapper;
+    private final boolean unboundedListEnabled;
+    private final int defaultPageSize;
+    private final int maxPageSize;
 
-    public BookRestController(BookUsercase usecase) {
+    public BookRestController(
+            BookUsercase usecase,
+            ObjectMapper objectMapper,
+            @Value("${app.books.unbounded-list.enabled:true}") boolean unboundedListEnabled,
+            @Value("${app.books.page.default-size:20}") int defaultPageSize,
+            @Value("${app.books.page.max-size:100}") int maxPageSize) {
         this.usecase = usecase;
+        this.objectMapper = objectMapper;
+        this.unboundedListEnabled = unboundedListEnabled;
+        this.defaultPageSize = defaultPageSize;
+        this.maxPageSize = maxPageSize;
     }
 
+    // The books are paged by a cursor, the link to the next page is sent in the Link header.
+    // Without cursor and limit the whole catalog is returned, as long as that is still enabled.
+    // Lists only come with an ETag, a Last-Modified could not tell that a book was deleted.
     @GetMapping(produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<Iterable<Book>> getAll() {
-        return new ResponseEntity<>(this.usecase.findAll(), HttpStatus.OK);
+    public ResponseEntity<Iterable<Book>> getAll(
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @RequestParam(name = "limit", required = false) Integer limit,
+            WebRequest webRequest) {
+        if (cursor == null && limit == null && this.unboundedListEnabled) {
+            // Clients that already have the current catalog get a 304 without us loading a single book
+            if (webRequest.getHeader(HttpHeaders.IF_NONE_MATCH) != null
+                    && webRequest.checkNotModified(catalogETag(this.usecase.findCatalogVersion()))) {
+                return null;
+            }
+            Iterable<Book> books = this.usecase.findAll();
+            return ResponseEntity.ok()
+                    .header("Deprecation", "true")
+                    .eTag(catalogETag(CatalogVersion.of(books)))
+                    .body(books);
+        }
+
+        Long afterId;
+        try {
+            afterId = cursor == null ? null : decodeCursor(cursor);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(null, HttpStatus.BAD_REQUEST);
+        }
+        final int size = pageSize(limit);
+        // We ask for one more book to know if there is a next page
+        List<Book> books = this.usecase.findPage(afterId, size + 1);
+        // The page is loaded anyway, so its ETag is computed from the books on it
+        if (webRequest.checkNotModified(pageETag(books))) {
+            return null;
+        }
+        return page(books, size);
+    }
+
+    // Prefix search on the words of title and author, paged the same way as the list of all books
+    @GetMapping(path = "/search", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Iterable<Book>> search(
+            @RequestParam(name = "q") String query,
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @RequestParam(name = "limit", required = false) Integer limit) {
+        final int size = pageSize(limit);
+        try {
+            Long afterId = cursor == null ? null : decodeCursor(cursor);
+            return page(this.usecase.search(query, afterId, size + 1), size);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(null, HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    private int pageSize(Integer limit) {
+        return Math.max(1, Math.min(limit == null ? this.defaultPageSize : limit, this.maxPageSize));
+    }
+
+    // Expects up to size + 1 books, the extra one only tells us that there is a next page
+    private static ResponseEntity<Iterable<Book>> page(List<Book> books, int size) {
+        if (books.size() <= size) {
+            return ResponseEntity.ok(books);
+        }
+        books = books.subList(0, size);
+        String next = ServletUriComponentsBuilder.fromCurrentRequest()
+                .replaceQueryParam("cursor", encodeCursor(books.get(size - 1).getId()))
+                .replaceQueryParam("limit", size)
+                .toUriString();
+        return ResponseEntity.ok()
+                .header(HttpHeaders.LINK, "<" + next + ">; rel=\"next\"")
+                .body(books);
+    }
+
+    // One JSON object per line, written while the rows come in from the database
+    @GetMapping(path = "/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> export() {
+        StreamingResponseBody body = out -> {
+            final int[] written = {0};
+            this.usecase.exportAll(book -> {
+                try {
+                    out.write(this.objectMapper.writeValueAsBytes(book));
+                    out.write('\n');
+                    if (++written[0] % EXPORT_FLUSH_INTERVAL == 0) {
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            out.flush();
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
     }
 
     @GetMapping(path = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<Book> getById(@PathVariable("id") Long id) {
+    public ResponseEntity<Book> getById(@PathVariable("id") Long id, WebRequest webRequest) {
+        // For conditional requests we only look up the update time, the book itself is loaded when it changed
+        if (webRequest.getHeader(HttpHeaders.IF_NONE_MATCH) != null || webRequest.getHeader(HttpHeaders.IF_MODIFIED_SINCE) != null) {
+            LocalDateTime updatedAt = this.usecase.findUpdatedAt(id);
+            if (updatedAt == null) {
+                return new ResponseEntity<>(null, HttpStatus.NOT_FOUND);
+            }
+            if (webRequest.checkNotModified(bookETag(id, updatedAt), lastModified(updatedAt))) {
+                return null;
+            }
+        }
         Book book = this.usecase.findById(id);
         if (book == null) {
             return new ResponseEntity<>(null, HttpStatus.NOT_FOUND);
         }
-        return new ResponseEntity<>(book, HttpStatus.OK);
+        return ResponseEntity.ok()
+                .eTag(bookETag(book.getId(), book.getUpdatedAt()))
+                .lastModified(lastModified(book.getUpdatedAt()))
+                .body(book);
     }
 
     // We can build our own custom annotations to replace the @Secured annotation
@@ -42,6 +180,35 @@ public class BookRestController {
         return ResponseEntity.ok(created);
     }
 
+    @UserHasRolePublisher
+    @PostMapping(path = "/bulk", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<BookUsercase.ImportReport> importBooks(@RequestBody List<CreateBookRequest> requests) {
+        return ResponseEntity.ok(this.usecase.importAll(
+                requests.stream().map(r -> new BookUsercase.BookDraft(r.title, r.author)).iterator()));
+    }
+
+    // The NDJSON variant never holds the whole import in memory, the lines are read while the chunks are inserted.
+    // A line that is not a valid book ends the import, the rows before it stay imported and the last error says where it stopped.
+    @UserHasRolePublisher
+    @PostMapping(path = "/bulk", consumes = MediaType.APPLICATION_NDJSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<BookUsercase.ImportReport> importBooksStream(InputStream body) throws IOException {
+        try (MappingIterator<CreateBookRequest> parser = this.objectMapper.readerFor(CreateBookRequest.class).readValues(body)) {
+            UntilInvalidJson<CreateBookRequest> requests = new UntilInvalidJson<>(parser);
+            Iterator<BookUsercase.BookDraft> drafts = StreamSupport.stream(
+                            Spliterators.spliteratorUnknownSize(requests, Spliterator.ORDERED), false)
+                    .map(r -> new BookUsercase.BookDraft(r.title, r.author))
+                    .iterator();
+            BookUsercase.ImportReport report = this.usecase.importAll(drafts);
+            if (requests.isInvalid()) {
+                List<BookUsercase.ImportError> errors = new ArrayList<>(report.errors());
+                errors.add(new BookUsercase.ImportError(requests.rowsRead(), null,
+                        "Invalid JSON, the import stopped at this row and nothing after it was imported"));
+                report = new BookUsercase.ImportReport(report.created(), errors);
+            }
+            return ResponseEntity.ok(report);
+        }
+    }
+
     // We can use the @Secured annotation to check for roles
     @Secured({"ROLE_PUBLISHER", "ROLE_AUTHOR"})
     @PostMapping(path = "/{id}", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
@@ -53,6 +220,36 @@ public class BookRestController {
         return ResponseEntity.ok(created);
     }
 
+    private static String bookETag(Long id, LocalDateTime updatedAt) {
+        return "\"" + id + "-" + lastModified(updatedAt) + "\"";
+    }
+
+    private static String catalogETag(CatalogVersion version) {
+        return "\"catalog-" + version.count() + "-" + (version.maxId() == null ? 0 : version.maxId()) + "-"
+                + lastModified(version.maxUpdatedAt()) + "\"";
+    }
+
+    // Covers the extra book as well, so the ETag also changes when the next page appears or goes away
+    private static String pageETag(List<Book> books) {
+        StringBuilder version = new StringBuilder(books.size() * 24);
+        for (Book book : books) {
+            version.append(book.getId()).append(':').append(lastModified(book.getUpdatedAt())).append(',');
+        }
+        return "\"page-" + DigestUtils.sha256Hex(version.toString()) + "\"";
+    }
+
+    private static long lastModified(LocalDateTime updatedAt) {
+        return updatedAt == null ? -1 : updatedAt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static String encodeCursor(Long id) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(id.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Long decodeCursor(String cursor) {
+        return Long.valueOf(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+    }
+
     public record CreateBookRequest(
             String title,
             String author
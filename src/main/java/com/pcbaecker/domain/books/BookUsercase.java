@@ -1,23 +1,72 @@
 package com.pcbaecker.domain.books;
 
+import com.pcbaecker.config.security.RoleAuthenticationToken;
+import com.pcbaecker.domain.users.UserRole;
+import jakarta.persistence.EntityManager;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Limit;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.StringUtils;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 @Component
 public class BookUsercase {
 
+    private static final Pattern SEARCH_TOKEN_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    // More tokens only narrow the result, but every token is another index lookup
+    private static final int MAX_SEARCH_TOKENS = 8;
+    // A single letter as a prefix matches nearly every lexeme, so such a query would read most of the index
+    private static final int MIN_SEARCH_TOKEN_LENGTH = 2;
+
     private final BookRepository bookRepository;
+    private final BookCache bookCache;
+    private final EntityManager entityManager;
+    private final TransactionTemplate transactionTemplate;
+    private final int importChunkSize;
 
-    public BookUsercase(BookRepository bookRepository) {
+    public BookUsercase(
+            BookRepository bookRepository,
+            BookCache bookCache,
+            EntityManager entityManager,
+            TransactionTemplate transactionTemplate,
+            @Value("${app.books.import.chunk-size:500}") int importChunkSize) {
         this.bookRepository = bookRepository;
+        this.bookCache = bookCache;
+        this.entityManager = entityManager;
+        this.transactionTemplate = transactionTemplate;
+        this.importChunkSize = importChunkSize;
     }
 
     public Book findById(Long userId) {
-        return this.bookRepository.findById(userId).orElse(null);
+        return this.bookCache.get(userId, id -> this.bookRepository.findById(id).orElse(null));
+    }
+
+    public LocalDateTime findUpdatedAt(Long id) {
+        Book cached = this.bookCache.getIfPresent(id);
+        if (cached != null) {
+            return cached.getUpdatedAt();
+        }
+        return this.bookRepository.findUpdatedAtById(id).orElse(null);
+    }
+
+    public CatalogVersion findCatalogVersion() {
+        return this.bookRepository.findCatalogVersion();
     }
 
     public Book create(String title, String author) {
@@ -25,13 +74,99 @@ public class BookUsercase {
             throw new IllegalArgumentException("Title and author are required");
         }
 
+        Book book = newBook(title, author);
+        book = this.bookRepository.save(book);
+        this.bookCache.put(book);
+
+        return book;
+    }
+
+    // Imports the books chunk by chunk, every chunk is inserted in one transaction with JDBC batching.
+    // Invalid rows and title conflicts are reported per row and do not stop the import.
+    public ImportReport importAll(Iterator<BookDraft> drafts) {
+        List<ImportError> errors = new ArrayList<>();
+        List<ImportRow> chunk = new ArrayList<>(this.importChunkSize);
+        int created = 0;
+        int row = 0;
+        while (drafts.hasNext()) {
+            chunk.add(new ImportRow(row++, drafts.next()));
+            if (chunk.size() == this.importChunkSize) {
+                created += importChunk(chunk, errors);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            created += importChunk(chunk, errors);
+        }
+        return new ImportReport(created, errors);
+    }
+
+    private int importChunk(List<ImportRow> chunk, List<ImportError> errors) {
+        List<ImportRow> valid = new ArrayList<>(chunk.size());
+        Set<String> titles = new HashSet<>();
+        for (ImportRow row : chunk) {
+            if (!StringUtils.hasText(row.draft().title()) || !StringUtils.hasText(row.draft().author())) {
+                errors.add(row.error("Title and author are required"));
+            } else if (!titles.add(row.draft().title())) {
+                errors.add(row.error("Title appears more than once in the import"));
+            } else {
+                valid.add(row);
+            }
+        }
+        if (valid.isEmpty()) {
+            return 0;
+        }
+
+        // One query finds all titles of the chunk that already exist
+        Set<String> existing = this.bookRepository.findTitlesIn(titles);
+        List<ImportRow> toInsert = new ArrayList<>(valid.size());
+        for (ImportRow row : valid) {
+            if (existing.contains(row.draft().title())) {
+                errors.add(row.error("Title already exists"));
+            } else {
+                toInsert.add(row);
+            }
+        }
+
+        try {
+            this.transactionTemplate.executeWithoutResult(status -> {
+                this.bookRepository.saveAll(
+                        toInsert.stream().map(r -> newBook(r.draft().title(), r.draft().author())).toList());
+                detachImported();
+            });
+            return toInsert.size();
+        } catch (DataIntegrityViolationException e) {
+            // Someone else inserted one of the titles in the meantime, so we have to find out which one row by row
+            int created = 0;
+            for (ImportRow row : toInsert) {
+                try {
+                    this.transactionTemplate.executeWithoutResult(status -> {
+                        this.bookRepository.save(newBook(row.draft().title(), row.draft().author()));
+                        detachImported();
+                    });
+                    created++;
+                } catch (DataIntegrityViolationException rowException) {
+                    errors.add(row.error("Title already exists"));
+                }
+            }
+            return created;
+        }
+    }
+
+    // With open-in-view the chunk transactions join the EntityManager of the request, which outlives them. Without
+    // the clear every imported book would stay managed until the response is written and be dirty checked again on
+    // every later flush, so memory grows with the import and the flushes get slower with every chunk.
+    private void detachImported() {
+        this.entityManager.flush();
+        this.entityManager.clear();
+    }
+
+    private static Book newBook(String title, String author) {
         Book book = new Book();
         book.setTitle(title);
         book.setAuthor(author);
         book.setCreatedAt(LocalDateTime.now());
         book.setUpdatedAt(LocalDateTime.now());
-        book = this.bookRepository.save(book);
-
         return book;
     }
 
@@ -44,10 +179,8 @@ public class BookUsercase {
 
         // We can check the authentication and authorization by asking the security context holder
         Authentication auth = SecurityContextHolder.getContext().getAuthentication();
-        final Book finalBook = book;
-        boolean isAuthorized = auth.getAuthorities().stream().anyMatch(
-                a -> a.getAuthority().equals("ROLE_PUBLISHER")
-                        || (a.getAuthority().equals("ROLE_AUTHOR") && finalBook.getAuthor().equals(auth.getName())));
+        boolean isAuthorized = RoleAuthenticationToken.hasRole(auth, UserRole.PUBLISHER)
+                || (RoleAuthenticationToken.hasRole(auth, UserRole.AUTHOR) && book.getAuthor().equals(auth.getName()));
         if (!isAuthorized) {
             throw new RuntimeException("You are not authorized to update this book");
         }
@@ -56,6 +189,7 @@ public class BookUsercase {
         book.setAuthor(author);
         book.setUpdatedAt(LocalDateTime.now());
         book = this.bookRepository.save(book);
+        this.bookCache.put(book);
 
         return book;
     }
@@ -63,4 +197,66 @@ public class BookUsercase {
     public Iterable<Book> findAll() {
         return this.bookRepository.findAll();
     }
+
+    // Hands the books one by one to the consumer, so the memory stays the same no matter how big the catalog is
+    @Transactional(readOnly = true)
+    public void exportAll(Consumer<Book> consumer) {
+        try (Stream<Book> books = this.bookRepository.streamAllOrderById()) {
+            books.forEach(book -> {
+                consumer.accept(book);
+                this.entityManager.detach(book);
+            });
+        }
+    }
+
+    public List<Book> findPage(Long afterId, int size) {
+        if (afterId == null) {
+            return this.bookRepository.findAllByOrderByIdAsc(Limit.of(size));
+        }
+        return this.bookRepository.findByIdGreaterThanOrderByIdAsc(afterId, Limit.of(size));
+    }
+
+    // Every word of the query has to match the beginning of a word in title or author, so "tolk hob" finds
+    // "The Hobbit" by "J.R.R. Tolkien". Only letters and digits make it into the tsquery, words shorter than
+    // MIN_SEARCH_TOKEN_LENGTH are left out.
+    public List<Book> search(String query, Long afterId, int size) {
+        List<String> tokens = Arrays.stream(query == null ? new String[0] : SEARCH_TOKEN_SEPARATOR.split(query))
+                .filter(t -> t.codePointCount(0, t.length()) >= MIN_SEARCH_TOKEN_LENGTH)
+                .limit(MAX_SEARCH_TOKENS)
+                .map(t -> t.toLowerCase(Locale.ROOT) + ":*")
+                .toList();
+        if (tokens.isEmpty()) {
+            throw new IllegalArgumentException("The search query needs at least one word of "
+                    + MIN_SEARCH_TOKEN_LENGTH + " or more letters or digits");
+        }
+        return this.bookRepository.search(String.join(" & ", tokens), afterId == null ? 0 : afterId, size);
+    }
+
+    public record BookDraft(
+            String title,
+            String author
+    ) {
+    }
+
+    public record ImportError(
+            int row,
+            String title,
+            String error
+    ) {
+    }
+
+    public record ImportReport(
+            int created,
+            List<ImportError> errors
+    ) {
+    }
+
+    private record ImportRow(
+            int row,
+            BookDraft draft
+    ) {
+        ImportError error(String message) {
+            return new ImportError(this.row, this.draft.title(), message);
+        }
+    }
 }
@@ -0,0 +1,28 @@
+package com.pcbaecker.domain.books;
+
+import java.time.LocalDateTime;
+
+// Changes whenever a book is added, updated or deleted, which is all we need to validate a cached list of all books.
+// A delete lowers neither maximum, that is what the count is for.
+public record CatalogVersion(
+        long count,
+        Long maxId,
+        LocalDateTime maxUpdatedAt
+) {
+    // The same version as the query computes, from the books that were loaded anyway
+    static CatalogVersion of(Iterable<Book> books) {
+        long count = 0;
+        Long maxId = null;
+        LocalDateTime maxUpdatedAt = null;
+        for (Book book : books) {
+            count++;
+            if (maxId == null || book.getId() > maxId) {
+                maxId = book.getId();
+            }
+            if (book.getUpdatedAt() != null && (maxUpdatedAt == null || book.getUpdatedAt().isAfter(maxUpdatedAt))) {
+                maxUpdatedAt = book.getUpdatedAt();
+            }
+        }
+        return new CatalogVersion(count, maxId, maxUpdatedAt);
+    }
+}
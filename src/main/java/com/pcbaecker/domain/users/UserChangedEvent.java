@@ -0,0 +1,7 @@
+package com.pcbaecker.domain.users;
+
+public record UserChangedEvent(
+        Long id,
+        String username
+) {
+}
@@ -1,17 +1,29 @@
 package com.pcbaecker.domain.users;
 
+import jakarta.persistence.QueryHint;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.PagingAndSortingRepository;
 
+import java.util.Collection;
 import java.util.Optional;
+import java.util.Set;
+
+import static org.hibernate.jpa.HibernateHints.HINT_CACHEABLE;
 
 public interface UserRepository extends PagingAndSortingRepository<User, Long>, CrudRepository<User,Long> {
 
     @Query("SELECT COUNT(u) FROM User u WHERE u.username = ?1")
     long countByUsername(String username);
 
-    @Query("SELECT u FROM User u WHERE u.username = ?1")
+    @Query("SELECT u.username FROM User u WHERE u.username IN ?1")
+    Set<String> findUsernamesIn(Collection<String> usernames);
+
+    // Loads the roles in the same query. With the second-level cache enabled the result is cached as well,
+    // any write to the users table makes Hibernate skip the cached result.
+    @QueryHints(@QueryHint(name = HINT_CACHEABLE, value = "true"))
+    @Query("SELECT u FROM User u LEFT JOIN FETCH u.roles WHERE u.username = ?1")
     Optional<User> findByUsername(String username);
 
 }
@@ -0,0 +1,58 @@
+package com.pcbaecker.domain.users;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+// The roles the application knows about. Every role has its own bit, so a set of roles fits into a long and
+// a role check is a single AND. The constants are the authorities themselves, there is nothing to allocate.
+public enum UserRole implements GrantedAuthority {
+    USER,
+    AUTHOR,
+    PUBLISHER,
+    ADMIN;
+
+    private static final Map<String, UserRole> BY_AUTHORITY = new HashMap<>();
+
+    static {
+        for (UserRole role : values()) {
+            BY_AUTHORITY.put(role.authority, role);
+        }
+    }
+
+    private final String authority = "ROLE_" + name();
+    private final long bit = 1L << ordinal();
+
+    @Override
+    public String getAuthority() {
+        return this.authority;
+    }
+
+    public long bit() {
+        return this.bit;
+    }
+
+    public static UserRole fromAuthority(String authority) {
+        return BY_AUTHORITY.get(authority);
+    }
+
+    // Roles stored in the database that the application does not know stay plain authorities
+    public static GrantedAuthority toAuthority(String authority) {
+        UserRole role = fromAuthority(authority);
+        return role != null ? role : new SimpleGrantedAuthority(authority);
+    }
+
+    public static long bits(Collection<? extends GrantedAuthority> authorities) {
+        long bits = 0;
+        for (GrantedAuthority authority : authorities) {
+            UserRole role = authority instanceof UserRole r ? r : fromAuthority(authority.getAuthority());
+            if (role != null) {
+                bits |= role.bit;
+            }
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,4 @@
+-- Runs after Hibernate created the tables (spring.jpa.defer-datasource-initialization)
+
+-- Backs GET /books/search, the expression must be the same as in BookRepository.search
+CREATE INDEX IF NOT EXISTS books_search_idx ON books USING GIN (to_tsvector('simple', title || ' ' || author));
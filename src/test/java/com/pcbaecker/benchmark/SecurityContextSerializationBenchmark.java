@@ -0,0 +1,77 @@
+package com.pcbaecker.benchmark;
+
+import com.pcbaecker.config.session.CompactSessionSerializer;
+import com.pcbaecker.domain.users.User;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextImpl;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+// The SecurityContext is written to Redis on every login and read on every request that misses the session cache
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SecurityContextSerializationBenchmark {
+
+    @Param({"1", "5", "20"})
+    private int rolesPerUser;
+
+    private JdkSerializationRedisSerializer jdk;
+    private CompactSessionSerializer compact;
+    private SecurityContext securityContext;
+    private byte[] jdkBytes;
+    private byte[] compactBytes;
+
+    @Setup
+    public void setup() {
+        this.jdk = new JdkSerializationRedisSerializer(getClass().getClassLoader());
+        this.compact = new CompactSessionSerializer(getClass().getClassLoader(), new SimpleMeterRegistry(), 0);
+        User user = User.builder()
+                .id(1L)
+                .username("user")
+                .password("{bcrypt}$2a$10$abcdefghijklmnopqrstuuvwxyzabcdefghijklmnopqrstuvwxyz")
+                .roles(UserAuthoritiesBenchmark.roles(this.rolesPerUser))
+                .createdAt(LocalDateTime.now())
+                .updatedAt(LocalDateTime.now())
+                .build();
+        this.securityContext = new SecurityContextImpl(
+                UsernamePasswordAuthenticationToken.authenticated(user, null, user.getAuthorities()));
+        this.jdkBytes = this.jdk.serialize(this.securityContext);
+        this.compactBytes = this.compact.serialize(this.securityContext);
+    }
+
+    @Benchmark
+    public byte[] serializeJdk() {
+        return this.jdk.serialize(this.securityContext);
+    }
+
+    @Benchmark
+    public byte[] serializeCompact() {
+        return this.compact.serialize(this.securityContext);
+    }
+
+    @Benchmark
+    public Object deserializeJdk() {
+        return this.jdk.deserialize(this.jdkBytes);
+    }
+
+    @Benchmark
+    public Object deserializeCompact() {
+        return this.compact.deserialize(this.compactBytes);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SecurityContextSerializationBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,65 @@
+package com.pcbaecker.benchmark;
+
+import com.pcbaecker.config.security.SessionRestController.SessionInfo;
+import com.pcbaecker.config.session.SessionMetadataIndex.SessionMetadata;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+// The CPU part of GET /sessions: hashing the session ids and mapping the metadata to the response
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionListingBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    private int sessionsPerUser;
+
+    private List<String> sessionIds;
+    private List<SessionMetadata> sessions;
+    private String currentSessionId;
+
+    @Setup
+    public void setup() {
+        this.sessionIds = new ArrayList<>(this.sessionsPerUser);
+        this.sessions = new ArrayList<>(this.sessionsPerUser);
+        Instant now = Instant.now();
+        for (int i = 0; i < this.sessionsPerUser; i++) {
+            String sessionId = UUID.randomUUID().toString();
+            this.sessionIds.add(sessionId);
+            this.sessions.add(new SessionMetadata(DigestUtils.sha256Hex(sessionId), sessionId,
+                    "Mozilla/5.0 (X11; Linux x86_64)", now, now, Duration.ofMinutes(30)));
+        }
+        this.currentSessionId = this.sessionIds.get(0);
+    }
+
+    @Benchmark
+    public List<String> hashSessionIds() {
+        return this.sessionIds.stream().map(DigestUtils::sha256Hex).toList();
+    }
+
+    @Benchmark
+    public Set<SessionInfo> mapSessionInfos() {
+        return this.sessions.stream()
+                .map(m -> SessionInfo.of(m, this.currentSessionId))
+                .collect(Collectors.toSet());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SessionListingBenchmark.class.getSimpleName()).build()).run();
+    }
+}
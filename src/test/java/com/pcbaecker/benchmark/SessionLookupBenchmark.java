@@ -0,0 +1,104 @@
+package com.pcbaecker.benchmark;
+
+import com.pcbaecker.config.session.SessionMetadataIndex;
+import com.pcbaecker.config.session.SessionMetadataIndex.SessionMetadata;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.Session;
+import org.springframework.session.data.redis.RedisIndexedSessionRepository;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+// Compares how DELETE /sessions/{id} finds the session to delete, against an embedded Redis: loading every session
+// of the user and hashing their ids, which is what the endpoint did before, versus one HGET on the metadata index
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionLookupBenchmark {
+
+    private static final String PRINCIPAL = "benchmark";
+
+    @Param({"1", "10", "100", "1000"})
+    private int sessionsPerUser;
+
+    private RedisServer redis;
+    private LettuceConnectionFactory connectionFactory;
+    private FindByIndexNameSessionRepository<Session> sessionRepository;
+    private SessionMetadataIndex sessionMetadataIndex;
+    private String hashedIdToDelete;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        this.redis = new RedisServer(port);
+        this.redis.start();
+        this.connectionFactory = new LettuceConnectionFactory("localhost", port);
+        this.connectionFactory.afterPropertiesSet();
+
+        RedisTemplate<String, Object> sessionRedis = new RedisTemplate<>();
+        sessionRedis.setConnectionFactory(this.connectionFactory);
+        sessionRedis.setKeySerializer(RedisSerializer.string());
+        sessionRedis.setHashKeySerializer(RedisSerializer.string());
+        sessionRedis.afterPropertiesSet();
+        this.sessionRepository = (FindByIndexNameSessionRepository<Session>) (FindByIndexNameSessionRepository<?>)
+                new RedisIndexedSessionRepository(sessionRedis);
+        this.sessionMetadataIndex = new SessionMetadataIndex(new StringRedisTemplate(this.connectionFactory));
+
+        Instant now = Instant.now();
+        String lastSessionId = null;
+        for (int i = 0; i < this.sessionsPerUser; i++) {
+            Session session = this.sessionRepository.createSession();
+            session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, PRINCIPAL);
+            this.sessionRepository.save(session);
+            this.sessionMetadataIndex.put(PRINCIPAL, new SessionMetadata(DigestUtils.sha256Hex(session.getId()),
+                    session.getId(), "Mozilla/5.0 (X11; Linux x86_64)", now, now, Duration.ofMinutes(30)));
+            lastSessionId = session.getId();
+        }
+        this.hashedIdToDelete = DigestUtils.sha256Hex(lastSessionId);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.connectionFactory.destroy();
+        this.redis.stop();
+    }
+
+    @Benchmark
+    public String hashEverySession() {
+        return this.sessionRepository.findByPrincipalName(PRINCIPAL).keySet().stream()
+                .filter(id -> DigestUtils.sha256Hex(id).equals(this.hashedIdToDelete))
+                .findFirst()
+                .orElse(null);
+    }
+
+    @Benchmark
+    public String lookupHashedId() {
+        return this.sessionMetadataIndex.findByHashedId(PRINCIPAL, this.hashedIdToDelete)
+                .map(SessionMetadata::id)
+                .orElse(null);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SessionLookupBenchmark.class.getSimpleName()).build()).run();
+    }
+}
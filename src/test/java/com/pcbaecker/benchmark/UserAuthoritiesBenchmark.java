@@ -0,0 +1,71 @@
+package com.pcbaecker.benchmark;
+
+import com.pcbaecker.config.security.RoleAuthenticationToken;
+import com.pcbaecker.domain.users.User;
+import com.pcbaecker.domain.users.UserRole;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// User.getAuthorities() builds the authorities at login, later role checks use the bits of the RoleAuthenticationToken
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserAuthoritiesBenchmark {
+
+    @Param({"1", "5", "20"})
+    private int rolesPerUser;
+
+    private User user;
+    private Authentication authentication;
+
+    @Setup
+    public void setup() {
+        this.user = User.builder()
+                .id(1L)
+                .username("user")
+                .roles(roles(this.rolesPerUser))
+                .build();
+        this.authentication = new RoleAuthenticationToken(this.user, null, this.user.getAuthorities());
+    }
+
+    @Benchmark
+    public Collection<? extends GrantedAuthority> getAuthorities() {
+        return this.user.getAuthorities();
+    }
+
+    @Benchmark
+    public boolean hasRole() {
+        return this.user.getAuthorities().stream().anyMatch(a -> a.getAuthority().equals("ROLE_PUBLISHER"));
+    }
+
+    // What a @Secured check costs with the role bits of the login
+    @Benchmark
+    public boolean hasRoleBits() {
+        return RoleAuthenticationToken.hasRole(this.authentication, UserRole.PUBLISHER);
+    }
+
+    static List<String> roles(int count) {
+        List<String> roles = new ArrayList<>(count);
+        roles.add("ROLE_USER");
+        for (int i = 1; i < count; i++) {
+            roles.add("ROLE_" + i);
+        }
+        return roles;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(UserAuthoritiesBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -3,23 +3,37 @@ package com.pcbaecker.integration;
 import com.pcbaecker.domain.books.Book;
 import com.pcbaecker.domain.books.BookRepository;
 import com.pcbaecker.domain.books.BookRestController;
+import com.pcbaecker.domain.books.BookUsercase;
 import com.redis.testcontainers.RedisContainer;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.Session;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.orm.jpa.EntityManagerHolder;
 import org.springframework.security.test.context.support.WithMockUser;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.reactive.function.BodyInserters;
 import org.testcontainers.containers.PostgreSQLContainer;
 import org.testcontainers.junit.jupiter.Container;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 @IntegrationTest
+// Small chunks, so that the imports of the tests span several of them
+@TestPropertySource(properties = "app.books.import.chunk-size=10")
 public class BooksIT {
 
     @Autowired
@@ -28,6 +42,18 @@ public class BooksIT {
     @Autowired
     private WebTestClient client;
 
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private BookUsercase bookUsercase;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
     @Container
     @ServiceConnection
     static PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>(PostgreSQLContainer.IMAGE);
@@ -63,6 +89,130 @@ public class BooksIT {
     }
 
 
+    @Test
+    @WithMockUser(username = "user")
+    public void searchBooks() {
+        // GIVEN
+        this.bookRepository.saveAll(List.of(
+                new Book(1L,"The Hobbit", "J.R.R. Tolkien", LocalDateTime.now(), LocalDateTime.now()),
+                new Book(2L,"The Lord of the Rings", "J.R.R. Tolkien", LocalDateTime.now(), LocalDateTime.now())
+        ));
+
+        // WHEN
+        client
+                .get()
+                .uri("/books/search?q=tolk hob")
+                .exchange()
+
+                // THEN
+                .expectStatus().isOk()
+                .expectBodyList(Book.class)
+                .consumeWith(response -> {
+                    List<Book> books = response.getResponseBody();
+                    assertThat(books).isNotEmpty();
+                    assertThat(books).allSatisfy(b -> assertThat(b.getTitle()).contains("Hobbit"));
+                });
+
+        // WHEN the query has a word that is too short
+        client
+                .get()
+                .uri("/books/search?q=hob x")
+                .exchange()
+
+                // THEN the short word is left out
+                .expectStatus().isOk()
+                .expectBodyList(Book.class)
+                .consumeWith(response -> assertThat(response.getResponseBody())
+                        .extracting(Book::getTitle).containsExactly("The Hobbit"));
+
+        // WHEN
+        client
+                .get()
+                .uri("/books/search?q=...")
+                .exchange()
+
+                // THEN
+                .expectStatus().isBadRequest();
+
+        // WHEN only short words are left
+        client
+                .get()
+                .uri("/books/search?q=a b")
+                .exchange()
+
+                // THEN
+                .expectStatus().isBadRequest();
+    }
+
+    @Test
+    @WithMockUser(username = "user")
+    public void getBooks_paginated() {
+        // GIVEN
+        this.bookRepository.saveAll(List.of(
+                new Book(1L,"The Hobbit", "J.R.R. Tolkien", LocalDateTime.now(), LocalDateTime.now()),
+                new Book(2L,"The Lord of the Rings", "J.R.R. Tolkien", LocalDateTime.now(), LocalDateTime.now()),
+                new Book(3L,"The Silmarillion", "J.R.R. Tolkien", LocalDateTime.now(), LocalDateTime.now())
+        ));
+
+        // WHEN
+        var firstPage = client
+                .get()
+                .uri("/books?limit=2")
+                .exchange()
+
+                // THEN
+                .expectStatus().isOk()
+                .expectHeader().exists(HttpHeaders.LINK)
+                .expectBodyList(Book.class)
+                .hasSize(2)
+                .returnResult();
+        String link = firstPage.getResponseHeaders().getFirst(HttpHeaders.LINK);
+        String next = link.substring(link.indexOf('<') + 1, link.indexOf('>'));
+        List<Long> firstIds = firstPage.getResponseBody().stream().map(Book::getId).toList();
+
+        // WHEN
+        client
+                .get()
+                .uri(next)
+                .exchange()
+
+                // THEN
+                .expectStatus().isOk()
+                .expectBodyList(Book.class)
+                .consumeWith(response -> {
+                    List<Book> books = response.getResponseBody();
+                    assertThat(books).isNotEmpty();
+                    assertThat(books).allSatisfy(b -> assertThat(b.getId()).isGreaterThan(firstIds.get(1)));
+                });
+    }
+
+    @Test
+    @WithMockUser(username = "user")
+    public void exportBooks() {
+        // GIVEN
+        this.bookRepository.saveAll(List.of(
+                new Book(1L,"The Hobbit", "J.R.R. Tolkien", LocalDateTime.now(), LocalDateTime.now()),
+                new Book(2L,"The Lord of the Rings", "J.R.R. Tolkien", LocalDateTime.now(), LocalDateTime.now())
+        ));
+
+        // WHEN
+        client
+                .get()
+                .uri("/books/export")
+                .exchange()
+
+                // THEN
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+                .expectBody(String.class)
+                .consumeWith(response -> {
+                    String body = response.getResponseBody();
+                    assertThat(body).isNotNull();
+                    assertThat(body.lines().count()).isGreaterThanOrEqualTo(2);
+                    assertThat(body.lines()).allSatisfy(line -> assertThat(line).startsWith("{").endsWith("}"));
+                });
+    }
+
     @Test
     @WithMockUser(username = "user")
     public void getSingleBook() {
@@ -90,6 +240,113 @@ public class BooksIT {
                 });
     }
 
+    @Test
+    @WithMockUser(username = "user")
+    public void getBooks_notModifiedUntilBookIsDeleted() {
+        // GIVEN the ETags of a page and of the whole catalog
+        Book book = this.bookRepository.save(new Book(null, "Deleted title", "Deleted author", LocalDateTime.now(), LocalDateTime.now()));
+        String pageETag = getETag("/books?limit=100");
+        String catalogETag = getETag("/books");
+
+        // WHEN nothing changed, THEN both lists are not modified
+        client.get().uri("/books?limit=100").ifNoneMatch(pageETag).exchange()
+                .expectStatus().isNotModified();
+        client.get().uri("/books").ifNoneMatch(catalogETag).exchange()
+                .expectStatus().isNotModified();
+
+        // WHEN a book is deleted, which raises neither the highest id nor the latest update time
+        this.bookRepository.deleteById(book.getId());
+
+        // THEN both lists are sent again without the book
+        client.get().uri("/books?limit=100").ifNoneMatch(pageETag).exchange()
+                .expectStatus().isOk()
+                .expectBodyList(Book.class)
+                .value(books -> assertThat(books).extracting(Book::getId).doesNotContain(book.getId()));
+        client.get().uri("/books").ifNoneMatch(catalogETag).exchange()
+                .expectStatus().isOk()
+                .expectBodyList(Book.class)
+                .value(books -> assertThat(books).extracting(Book::getId).doesNotContain(book.getId()));
+    }
+
+    @Test
+    @WithMockUser(username = "user")
+    public void getSingleBook_notModified() {
+        // GIVEN
+        this.bookRepository.saveAll(List.of(
+                new Book(1L,"The Hobbit", "J.R.R. Tolkien", LocalDateTime.now(), LocalDateTime.now())
+        ));
+        String etag = client
+                .get()
+                .uri("/books/1")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().exists(HttpHeaders.ETAG)
+                .expectHeader().exists(HttpHeaders.LAST_MODIFIED)
+                .returnResult(Book.class)
+                .getResponseHeaders().getETag();
+
+        // WHEN
+        client
+                .get()
+                .uri("/books/1")
+                .ifNoneMatch(etag)
+                .exchange()
+
+                // THEN
+                .expectStatus().isNotModified();
+    }
+
+    @Test
+    @WithMockUser(username = "user")
+    public void getSingleBook_afterUpdate() {
+        // GIVEN a book that is cached since the last GET
+        Book book = this.bookRepository.save(new Book(null, "Cached title", "Cached author", LocalDateTime.now(), LocalDateTime.now()));
+        String etag = getBook(book.getId(), "Cached title");
+
+        // WHEN it is updated
+        book.setTitle("Updated title");
+        book.setUpdatedAt(book.getUpdatedAt().plusSeconds(1));
+        this.bookRepository.save(book);
+
+        // THEN the conditional GET sees the new update time and returns the new book
+        client
+                .get()
+                .uri("/books/" + book.getId())
+                .ifNoneMatch(etag)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(Book.class)
+                .value(b -> assertThat(b.getTitle()).isEqualTo("Updated title"));
+        assertThat(getBook(book.getId(), "Updated title")).isNotEqualTo(etag);
+    }
+
+    @Test
+    @WithMockUser(username = "user")
+    public void getSingleBook_afterUpdateOnOtherNode() throws InterruptedException {
+        // GIVEN a cached book that another node changed, without the entity listener of this node seeing it
+        Book book = this.bookRepository.save(new Book(null, "Remote title", "Remote author", LocalDateTime.now(), LocalDateTime.now()));
+        String etag = getBook(book.getId(), "Remote title");
+        this.jdbcTemplate.update("UPDATE books SET title = ?, updated_at = ? WHERE id = ?",
+                "Remotely updated title", book.getUpdatedAt().plusSeconds(1), book.getId());
+        assertThat(getBook(book.getId(), "Remote title")).isEqualTo(etag);
+
+        // WHEN the other node announces the change
+        this.redisTemplate.convertAndSend("books:cache-invalidation", "other-node:" + book.getId());
+
+        // THEN this node drops its copy as soon as the message arrives
+        String updatedEtag = null;
+        for (int i = 0; i < 50 && updatedEtag == null; i++) {
+            Thread.sleep(100);
+            Book current = client.get().uri("/books/" + book.getId()).exchange()
+                    .expectStatus().isOk()
+                    .expectBody(Book.class).returnResult().getResponseBody();
+            if (current != null && current.getTitle().equals("Remotely updated title")) {
+                updatedEtag = getBook(book.getId(), "Remotely updated title");
+            }
+        }
+        assertThat(updatedEtag).isNotNull().isNotEqualTo(etag);
+    }
+
     @Test
     @WithMockUser(username = "publisher", roles = "PUBLISHER")
     public void createBook() {
@@ -114,4 +371,114 @@ public class BooksIT {
                     assertThat(book.getAuthor()).isEqualTo("myauthor");
                 });
     }
+
+    @Test
+    @WithMockUser(username = "publisher", roles = "PUBLISHER")
+    public void importBooks() {
+        // GIVEN
+        this.bookRepository.saveAll(List.of(
+                new Book(1L,"The Hobbit", "J.R.R. Tolkien", LocalDateTime.now(), LocalDateTime.now())
+        ));
+
+        // WHEN
+        client
+                .post()
+                .uri("/books/bulk")
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(BodyInserters.fromValue("""
+                        {"title": "Bulk title 1", "author": "Bulk author"}
+                        {"title": "The Hobbit", "author": "J.R.R. Tolkien"}
+                        {"title": "Bulk title 2", "author": "Bulk author"}
+                        {"title": "Bulk title 2", "author": "Bulk author"}
+                        {"title": "", "author": "Bulk author"}
+                        """))
+                .exchange()
+
+                // THEN
+                .expectStatus().isOk()
+                .expectBody(BookUsercase.ImportReport.class)
+                .consumeWith(response -> {
+                    BookUsercase.ImportReport report = response.getResponseBody();
+                    assertThat(report).isNotNull();
+                    assertThat(report.created()).isEqualTo(2);
+                    assertThat(report.errors()).extracting(BookUsercase.ImportError::row).containsExactlyInAnyOrder(1, 3, 4);
+                });
+    }
+
+    @Test
+    @WithMockUser(username = "publisher", roles = "PUBLISHER")
+    public void importBooks_stopsAtInvalidLine() {
+        // WHEN
+        client
+                .post()
+                .uri("/books/bulk")
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(BodyInserters.fromValue("""
+                        {"title": "Valid title 1", "author": "Bulk author"}
+                        {"title": "Valid title 2", "author": "Bulk author"}
+                        {"title": "Broken title", "author":
+                        {"title": "Valid title 3", "author": "Bulk author"}
+                        """))
+                .exchange()
+
+                // THEN the rows before the broken line are imported and the last error tells where the import stopped
+                .expectStatus().isOk()
+                .expectBody(BookUsercase.ImportReport.class)
+                .consumeWith(response -> {
+                    BookUsercase.ImportReport report = response.getResponseBody();
+                    assertThat(report).isNotNull();
+                    assertThat(report.created()).isEqualTo(2);
+                    assertThat(report.errors()).extracting(BookUsercase.ImportError::row).containsExactly(2);
+                });
+        assertThat(this.bookRepository.findTitlesIn(Set.of("Valid title 1", "Valid title 2", "Valid title 3")))
+                .containsExactlyInAnyOrder("Valid title 1", "Valid title 2");
+    }
+
+    @Test
+    public void importBooks_clearsPersistenceContextOfRequest() {
+        // GIVEN an EntityManager bound to the thread, like open-in-view does for every request
+        List<BookUsercase.BookDraft> drafts = IntStream.range(0, 35)
+                .mapToObj(i -> new BookUsercase.BookDraft("Chunked title " + i, "Chunked author"))
+                .toList();
+        EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+        TransactionSynchronizationManager.bindResource(this.entityManagerFactory, new EntityManagerHolder(entityManager));
+        try {
+            // WHEN
+            BookUsercase.ImportReport report = this.bookUsercase.importAll(drafts.iterator());
+
+            // THEN every chunk is imported, but none of the books stays managed by the request
+            assertThat(report.created()).isEqualTo(35);
+            assertThat(report.errors()).isEmpty();
+            assertThat(entityManager.unwrap(Session.class).getStatistics().getEntityCount()).isZero();
+        } finally {
+            TransactionSynchronizationManager.unbindResource(this.entityManagerFactory);
+            entityManager.close();
+        }
+        assertThat(this.jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM books WHERE author = 'Chunked author'", Integer.class)).isEqualTo(35);
+    }
+
+    private String getETag(String uri) {
+        return client
+                .get()
+                .uri(uri)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().doesNotExist(HttpHeaders.LAST_MODIFIED)
+                .expectBody().returnResult()
+                .getResponseHeaders().getETag();
+    }
+
+    // Returns the ETag of the book after checking its title
+    private String getBook(Long id, String title) {
+        return client
+                .get()
+                .uri("/books/" + id)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(Book.class)
+                .value(b -> assertThat(b.getTitle()).isEqualTo(title))
+                .returnResult()
+                .getResponseHeaders().getETag();
+    }
 }
@@ -0,0 +1,129 @@
+package com.pcbaecker.integration;
+
+import com.pcbaecker.config.security.SessionRestController;
+import com.pcbaecker.domain.users.User;
+import com.pcbaecker.domain.users.UserRepository;
+import com.redis.testcontainers.RedisContainer;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// A hashing pool of one thread with room for one more login in its queue, so a handful of concurrent logins
+// already saturates it
+@IntegrationTest
+@TestPropertySource(properties = {
+        "app.security.password-hashing.pool-size=1",
+        "app.security.password-hashing.queue-capacity=1",
+        "app.security.password-hashing.wait-timeout=PT1S"
+})
+public class PasswordHashingIT {
+
+    private static final Duration WAIT_TIMEOUT = Duration.ofSeconds(1);
+    // Everything a login does besides waiting for the hash, with plenty of room for a cold JVM on a slow machine
+    private static final Duration LOGIN_OVERHEAD = Duration.ofSeconds(2);
+    private static final int CONCURRENT_LOGINS = 8;
+
+    @Autowired
+    private WebTestClient client;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private PasswordEncoder passwordEncoder;
+
+    @Container
+    @ServiceConnection
+    static PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>(PostgreSQLContainer.IMAGE);
+
+    @Container
+    @ServiceConnection
+    static RedisContainer redis = new RedisContainer(
+            RedisContainer.DEFAULT_IMAGE_NAME.withTag(RedisContainer.DEFAULT_TAG));
+
+    @Test
+    void test_login_saturatedHashingPool() throws Exception {
+        // GIVEN
+        this.userRepository.save(User.builder()
+                .username("hashing")
+                .password(this.passwordEncoder.encode("password"))
+                .createdAt(LocalDateTime.now())
+                .updatedAt(LocalDateTime.now())
+                .roles(List.of())
+                .build());
+
+        // WHEN more logins arrive at once than the pool can run and queue
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService clients = Executors.newFixedThreadPool(CONCURRENT_LOGINS);
+        List<Future<LoginResult>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < CONCURRENT_LOGINS; i++) {
+                futures.add(clients.submit(() -> {
+                    start.await();
+                    return login();
+                }));
+            }
+            start.countDown();
+            List<LoginResult> results = new ArrayList<>();
+            for (Future<LoginResult> future : futures) {
+                results.add(future.get());
+            }
+
+            // THEN the logins that do not fit are turned away with a 503 and a hint when to retry
+            assertThat(results).extracting(LoginResult::status)
+                    .containsOnly(HttpStatus.OK, HttpStatus.SERVICE_UNAVAILABLE)
+                    .contains(HttpStatus.OK, HttpStatus.SERVICE_UNAVAILABLE);
+            assertThat(results).filteredOn(r -> r.status() == HttpStatus.SERVICE_UNAVAILABLE)
+                    .extracting(LoginResult::retryAfter)
+                    .containsOnly("1");
+            // AND no login waits for the hashing longer than the wait timeout
+            assertThat(results).extracting(LoginResult::duration)
+                    .allSatisfy(duration -> assertThat(duration).isLessThan(WAIT_TIMEOUT.plus(LOGIN_OVERHEAD)));
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    private LoginResult login() {
+        final long started = System.nanoTime();
+        var response = client
+                .post()
+                .uri("/login")
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(BodyInserters.fromValue(new SessionRestController.LoginRequest("hashing", "password")))
+                .exchange()
+                .expectBody(String.class)
+                .returnResult();
+        return new LoginResult(
+                HttpStatus.valueOf(response.getStatus().value()),
+                response.getResponseHeaders().getFirst(HttpHeaders.RETRY_AFTER),
+                Duration.ofNanos(System.nanoTime() - started));
+    }
+
+    private record LoginResult(
+            HttpStatus status,
+            String retryAfter,
+            Duration duration
+    ) {
+    }
+}
@@ -0,0 +1,136 @@
+package com.pcbaecker.integration;
+
+import com.pcbaecker.config.security.RoleAuthenticationToken;
+import com.pcbaecker.config.security.SessionRestController;
+import com.pcbaecker.domain.books.BookRestController;
+import com.pcbaecker.domain.users.UserRole;
+import com.redis.testcontainers.RedisContainer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.authentication.AuthenticationCredentialsNotFoundException;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+// Calls the controllers through their proxies, so every call goes through the @Secured handling of the
+// RoleAuthorizationManager, with the role bits of a login and with plain authorities
+@IntegrationTest
+public class RoleAuthorizationIT {
+
+    @Autowired
+    private SessionRestController sessionController;
+
+    @Autowired
+    private BookRestController bookController;
+
+    @Container
+    @ServiceConnection
+    static PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>(PostgreSQLContainer.IMAGE);
+
+    @Container
+    @ServiceConnection
+    static RedisContainer redis = new RedisContainer(
+            RedisContainer.DEFAULT_IMAGE_NAME.withTag(RedisContainer.DEFAULT_TAG));
+
+    @AfterEach
+    void clearSecurityContext() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void test_secured_allowed() {
+        // GIVEN
+        authenticate(login(UserRole.ADMIN));
+
+        // WHEN
+        var response = this.sessionController.createUser(new SessionRestController.CreateUserRequest("secured-allowed", "password"));
+
+        // THEN
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+    }
+
+    @Test
+    void test_secured_denied() {
+        // GIVEN
+        authenticate(login(UserRole.USER, UserRole.PUBLISHER));
+
+        // WHEN / THEN
+        assertThatThrownBy(() -> this.sessionController.createUser(new SessionRestController.CreateUserRequest("secured-denied", "password")))
+                .isInstanceOf(AccessDeniedException.class);
+    }
+
+    @Test
+    void test_secured_withoutAuthentication() {
+        // WHEN / THEN
+        assertThatThrownBy(() -> this.sessionController.createUser(new SessionRestController.CreateUserRequest("secured-anonymous", "password")))
+                .isInstanceOf(AuthenticationCredentialsNotFoundException.class);
+    }
+
+    @Test
+    void test_secured_withPlainAuthorities() {
+        // GIVEN an authentication that was not created by our login, so it has no role bits
+        authenticate(new UsernamePasswordAuthenticationToken("plain", null, List.of(new SimpleGrantedAuthority("ROLE_ADMIN"))));
+
+        // WHEN
+        var response = this.sessionController.createUser(new SessionRestController.CreateUserRequest("secured-plain", "password"));
+
+        // THEN
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+    }
+
+    @Test
+    void test_userHasRolePublisher_allowed() {
+        // GIVEN
+        authenticate(login(UserRole.PUBLISHER));
+
+        // WHEN
+        var response = this.bookController.create(new BookRestController.CreateBookRequest("Authorized title", "Authorized author"));
+
+        // THEN
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+    }
+
+    @Test
+    void test_userHasRolePublisher_denied() {
+        // GIVEN
+        authenticate(login(UserRole.USER, UserRole.AUTHOR));
+
+        // WHEN / THEN
+        assertThatThrownBy(() -> this.bookController.create(new BookRestController.CreateBookRequest("Denied title", "Denied author")))
+                .isInstanceOf(AccessDeniedException.class);
+    }
+
+    @Test
+    void test_notSecured() {
+        // GIVEN a user without any of the roles the secured methods ask for
+        authenticate(login(UserRole.USER));
+
+        // WHEN
+        var response = this.bookController.export();
+
+        // THEN the manager abstains and the call goes through
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+    }
+
+    private static Authentication login(UserRole... roles) {
+        List<GrantedAuthority> authorities = List.of(roles);
+        return new RoleAuthenticationToken("user", null, authorities);
+    }
+
+    private static void authenticate(Authentication authentication) {
+        SecurityContextHolder.getContext().setAuthentication(authentication);
+    }
+}
@@ -1,36 +1,73 @@
 package com.pcbaecker.integration;
 
 import com.pcbaecker.config.security.SessionRestController;
+import com.pcbaecker.config.security.UserProvisioning;
+import com.pcbaecker.config.session.CoalescingSessionRepository;
+import com.pcbaecker.config.session.ExpiredSessionCleaner;
+import com.pcbaecker.config.session.SessionMetadataIndex;
 import com.pcbaecker.domain.users.User;
 import com.pcbaecker.domain.users.UserRepository;
 import com.redis.testcontainers.RedisContainer;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.orm.jpa.EntityManagerHolder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.session.FindByIndexNameSessionRepository;
 import org.springframework.session.Session;
+import org.springframework.session.data.redis.RedisIndexedSessionRepository;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.reactive.function.BodyInserters;
 import org.testcontainers.containers.PostgreSQLContainer;
 import org.testcontainers.junit.jupiter.Container;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 @IntegrationTest
+// Small chunks, so that the provisioning of the tests spans several of them
+@TestPropertySource(properties = "app.security.user-provisioning.chunk-size=4")
 public class SessionIT {
 
     @Autowired
     private FindByIndexNameSessionRepository<? extends Session> sessionRepo;
 
+    @Autowired
+    private SessionMetadataIndex sessionMetadataIndex;
+
+    @Autowired
+    private RedisIndexedSessionRepository redisSessionRepository;
+
+    @Autowired
+    private ExpiredSessionCleaner expiredSessionCleaner;
+
+    @Autowired
+    private CoalescingSessionRepository coalescingSessionRepository;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
     @Autowired
     private PasswordEncoder passwordEncoder;
 
@@ -40,6 +77,12 @@ public class SessionIT {
     @Autowired
     private WebTestClient client;
 
+    @Autowired
+    private UserProvisioning userProvisioning;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
     @Container
     @ServiceConnection
     static PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>(PostgreSQLContainer.IMAGE);
@@ -76,6 +119,148 @@ public class SessionIT {
         }
     }
 
+    @Test
+    void test_login_throttled() {
+        createUserIfNotExists("throttled", "password", List.of());
+        // GIVEN all attempts of the window were used up
+        for (int i = 0; i < 20; i++) {
+            client
+                    .post()
+                    .uri("/login")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(BodyInserters.fromValue(new SessionRestController.LoginRequest("throttled", "wrong")))
+                    .exchange()
+                    .expectStatus().value(status -> assertThat(status).isNotEqualTo(HttpStatus.TOO_MANY_REQUESTS.value()));
+        }
+
+        // WHEN
+        client
+                .post()
+                .uri("/login")
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(BodyInserters.fromValue(new SessionRestController.LoginRequest("throttled", "password")))
+                .exchange()
+
+                // THEN
+                .expectStatus().isEqualTo(HttpStatus.TOO_MANY_REQUESTS)
+                .expectHeader().exists(HttpHeaders.RETRY_AFTER);
+    }
+
+    @Test
+    void test_evictLeastRecentlyUsedSessions() {
+        createUserIfNotExists("capped", "password", List.of());
+        // GIVEN as many sessions as a user may have (app.session.max-sessions-per-user=3 in the test properties)
+        List<String> sessionIds = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            sessionIds.add(login("capped"));
+        }
+        assertThat(this.sessionRepo.findByIndexNameAndIndexValue(
+                FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "capped")).hasSize(3);
+
+        // WHEN the user logs in once more
+        sessionIds.add(login("capped"));
+
+        // THEN the least recently used session is gone
+        assertThat(this.sessionRepo.findByIndexNameAndIndexValue(
+                FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "capped"))
+                .containsOnlyKeys(sessionIds.subList(1, 4));
+        assertThat(this.sessionRepo.findById(sessionIds.get(0))).isNull();
+        assertThat(this.sessionMetadataIndex.findByPrincipalName("capped"))
+                .extracting(SessionMetadataIndex.SessionMetadata::id)
+                .containsExactlyInAnyOrderElementsOf(sessionIds.subList(1, 4));
+    }
+
+    @Test
+    void test_sessionMetadataIndex_expiry() {
+        final String key = "spring:session:meta:forever";
+        final Instant now = Instant.now();
+        // GIVEN
+        this.sessionMetadataIndex.put("forever",
+                new SessionMetadataIndex.SessionMetadata("long", "long-id", "Test", now, now, Duration.ofHours(1)));
+
+        // WHEN a session with a shorter max inactive interval is added
+        this.sessionMetadataIndex.put("forever",
+                new SessionMetadataIndex.SessionMetadata("short", "short-id", "Test", now, now, Duration.ofMinutes(1)));
+
+        // THEN the hash still lives as long as the longest session
+        assertThat(this.redisTemplate.getExpire(key, TimeUnit.SECONDS)).isGreaterThan(Duration.ofHours(1).toSeconds());
+
+        // WHEN a session that never expires is added
+        this.sessionMetadataIndex.put("forever",
+                new SessionMetadataIndex.SessionMetadata("never", "never-id", "Test", now, now, Duration.ofSeconds(-1)));
+
+        // THEN the hash does not expire anymore, not even when other sessions are added later
+        assertThat(this.redisTemplate.getExpire(key)).isEqualTo(-1);
+        this.sessionMetadataIndex.put("forever",
+                new SessionMetadataIndex.SessionMetadata("later", "later-id", "Test", now, now, Duration.ofMinutes(1)));
+        assertThat(this.redisTemplate.getExpire(key)).isEqualTo(-1);
+        assertThat(this.sessionMetadataIndex.findByPrincipalName("forever"))
+                .extracting(SessionMetadataIndex.SessionMetadata::id)
+                .containsExactlyInAnyOrder("long-id", "short-id", "never-id", "later-id");
+    }
+
+    @Test
+    void test_expiredSessionCleaner() throws InterruptedException {
+        createUserIfNotExists("expiring", "password", List.of());
+        // GIVEN a session that expired without Redis telling Spring Session about it
+        AtomicReference<String> sessionCookie = new AtomicReference<>();
+        client
+                .post()
+                .uri("/login")
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(BodyInserters.fromValue(new SessionRestController.LoginRequest("expiring", "password")))
+                .exchange()
+                .expectStatus().isOk()
+                .expectCookie().value("SESSION", sessionCookie::set);
+        String sessionId = new String(Base64.getDecoder().decode(sessionCookie.get()));
+        Session session = this.sessionRepo.findById(sessionId);
+        session.setMaxInactiveInterval(Duration.ofSeconds(1));
+        saveSession(session);
+        var sessionRedis = this.redisSessionRepository.getSessionRedisOperations();
+        sessionRedis.persist("spring:session:sessions:expires:" + sessionId);
+        sessionRedis.persist("spring:session:sessions:" + sessionId);
+        String indexKey = "spring:session:index:" + FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME + ":expiring";
+        assertThat(sessionRedis.opsForSet().members(indexKey)).contains(sessionId);
+        assertThat(this.redisTemplate.opsForHash().size("spring:session:meta:expiring")).isEqualTo(1);
+        Thread.sleep(1500);
+
+        // WHEN
+        for (int i = 0; i < 3; i++) {
+            this.expiredSessionCleaner.tick();
+        }
+
+        // THEN
+        assertThat(sessionRedis.opsForSet().members(indexKey)).doesNotContain(sessionId);
+        assertThat(this.redisTemplate.opsForHash().size("spring:session:meta:expiring")).isZero();
+    }
+
+    @Test
+    void test_login_afterPasswordChange() {
+        createUserIfNotExists("changing", "password", List.of());
+        // GIVEN
+        client
+                .post()
+                .uri("/login")
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(BodyInserters.fromValue(new SessionRestController.LoginRequest("changing", "password")))
+                .exchange()
+                .expectStatus().isOk();
+        User user = userRepository.findByUsername("changing").orElseThrow();
+        user.setPassword(passwordEncoder.encode("newpassword"));
+        userRepository.save(user);
+
+        // WHEN
+        client
+                .post()
+                .uri("/login")
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(BodyInserters.fromValue(new SessionRestController.LoginRequest("changing", "newpassword")))
+                .exchange()
+
+                // THEN
+                .expectStatus().isOk();
+    }
+
     @Test
     void test_logout() {
         createUserIfNotExists("user", "password", List.of());
@@ -121,6 +306,39 @@ public class SessionIT {
         }
     }
 
+    @Test
+    void test_logout_endsCachedSession() {
+        createUserIfNotExists("user", "password", List.of());
+        // GIVEN a session that was used recently and therefore is cached
+        AtomicReference<String> sessionCookie = new AtomicReference<>();
+        client.post()
+                .uri("/login")
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(BodyInserters.fromValue(new SessionRestController.LoginRequest("user", "password")))
+                .exchange()
+                .expectStatus().isOk()
+                .expectCookie().value("SESSION", sessionCookie::set);
+        client.get()
+                .uri("/sessions")
+                .cookie("SESSION", sessionCookie.get())
+                .exchange()
+                .expectStatus().isOk();
+
+        // WHEN
+        client.post()
+                .uri("/logout")
+                .cookie("SESSION", sessionCookie.get())
+                .exchange()
+                .expectStatus().isOk();
+
+        // THEN
+        client.get()
+                .uri("/sessions")
+                .cookie("SESSION", sessionCookie.get())
+                .exchange()
+                .expectStatus().is4xxClientError();
+    }
+
     @Test
     void test_getMySessions() {
         createUserIfNotExists("user", "password", List.of());
@@ -204,6 +422,61 @@ public class SessionIT {
                 });
     }
 
+    @Test
+    void test_sessionExpiry_withCoalescedTouches() throws InterruptedException {
+        createUserIfNotExists("user", "password", List.of());
+        // GIVEN a session whose max inactive interval is long enough that small touches are coalesced (threshold 6s)
+        AtomicReference<String> sessionCookie = new AtomicReference<>();
+        client
+                .post()
+                .uri("/login")
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(BodyInserters.fromValue(new SessionRestController.LoginRequest("user", "password")))
+                .exchange()
+                .expectStatus().isOk()
+                .expectCookie().value("SESSION", sessionCookie::set);
+        String sessionId = new String(Base64.getDecoder().decode(sessionCookie.get()));
+        Session session = this.sessionRepo.findById(sessionId);
+        session.setMaxInactiveInterval(Duration.ofSeconds(60));
+        saveSession(session);
+        Instant storedAccessTime = storedAccessTime(sessionId);
+
+        // WHEN the session is used a moment later
+        Thread.sleep(1000);
+        Instant touchedAfter = Instant.now();
+        client
+                .get()
+                .uri("/sessions")
+                .cookie("SESSION", sessionCookie.get())
+                .exchange()
+                .expectStatus().isOk();
+
+        // THEN the touch is held back and Redis still has the old access time
+        assertThat(storedAccessTime(sessionId))
+                .isEqualTo(storedAccessTime)
+                .isBefore(touchedAfter);
+
+        // WHEN the pending touches are flushed
+        this.coalescingSessionRepository.flush();
+
+        // THEN Redis catches up with the access time of the request, the expiry keys and the metadata entry with it
+        Instant flushedAccessTime = storedAccessTime(sessionId);
+        assertThat(flushedAccessTime)
+                .isAfterOrEqualTo(touchedAfter.truncatedTo(ChronoUnit.MILLIS));
+        assertThat(this.redisTemplate.getExpire("spring:session:sessions:expires:" + sessionId, TimeUnit.MILLISECONDS))
+                .isGreaterThan(Duration.between(Instant.now(), flushedAccessTime.plusSeconds(60)).toMillis() - 500);
+        assertThat(this.sessionMetadataIndex.findByPrincipalName("user"))
+                .filteredOn(m -> m.id().equals(sessionId))
+                .extracting(SessionMetadataIndex.SessionMetadata::lastAccessedTime)
+                .containsExactly(flushedAccessTime);
+        client
+                .get()
+                .uri("/sessions")
+                .cookie("SESSION", sessionCookie.get())
+                .exchange()
+                .expectStatus().isOk();
+    }
+
     @Test
     void test_createUser_noPermission() {
         // GIVEN
@@ -258,6 +531,103 @@ public class SessionIT {
                 .expectStatus().isCreated();
     }
 
+    @Test
+    void test_provisionUsers() {
+        // GIVEN
+        createUserIfNotExists("admin", "password", List.of("ROLE_ADMIN"));
+        createUserIfNotExists("taken", "password", List.of());
+        AtomicReference<String> sessionCookie = new AtomicReference<>();
+        client
+                .post()
+                .uri("/login")
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(BodyInserters.fromValue(new SessionRestController.LoginRequest("admin", "password")))
+                .exchange()
+                .expectStatus().isOk()
+                .expectCookie().value("SESSION", sessionCookie::set);
+
+        // WHEN
+        List<UserProvisioning.ProvisionResult> results = client
+                .post()
+                .uri("/users/bulk")
+                .cookie("SESSION", sessionCookie.get())
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .accept(MediaType.APPLICATION_NDJSON)
+                .body(BodyInserters.fromValue("""
+                        {"username": "bulk1", "password": "password1"}
+                        {"username": "taken", "password": "password2"}
+                        {"username": "bulk2", "password": "password3", "roles": ["AUTHOR", "ROLE_PUBLISHER"]}
+                        {"username": "bulk2", "password": "password4"}
+                        {"username": "bulk3", "password": "short"}
+                        {"username": "bulk4", "password": "password5", "roles": ["UNKNOWN"]}
+                        """))
+                .exchange()
+
+                // THEN
+                .expectStatus().isOk()
+                .returnResult(UserProvisioning.ProvisionResult.class)
+                .getResponseBody()
+                .collectList()
+                .block(Duration.ofSeconds(30));
+        assertThat(results).extracting(UserProvisioning.ProvisionResult::row).containsExactly(0, 1, 2, 3, 4, 5);
+        assertThat(results).filteredOn(r -> r.error() == null)
+                .extracting(UserProvisioning.ProvisionResult::username).containsExactly("bulk1", "bulk2");
+        User bulk2 = userRepository.findByUsername("bulk2").orElseThrow();
+        assertThat(bulk2.getRoles()).containsExactlyInAnyOrder("ROLE_AUTHOR", "ROLE_PUBLISHER");
+        assertThat(passwordEncoder.matches("password3", bulk2.getPassword())).isTrue();
+        assertThat(userRepository.findByUsername("bulk1").orElseThrow().getRoles()).containsExactly("ROLE_USER");
+    }
+
+    @Test
+    void test_provisionUsers_clearsPersistenceContextOfRequest() {
+        // GIVEN an EntityManager bound to the thread, like open-in-view does for every request
+        List<UserProvisioning.UserDraft> drafts = IntStream.range(0, 10)
+                .mapToObj(i -> new UserProvisioning.UserDraft("chunked" + i, "password", List.of()))
+                .toList();
+        List<UserProvisioning.ProvisionResult> results = new ArrayList<>();
+        EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+        TransactionSynchronizationManager.bindResource(this.entityManagerFactory, new EntityManagerHolder(entityManager));
+        try {
+            // WHEN
+            this.userProvisioning.provisionAll(drafts.iterator(), results::addAll);
+
+            // THEN every chunk is inserted, but none of the users stays managed by the request
+            assertThat(results).extracting(UserProvisioning.ProvisionResult::error).containsOnlyNulls();
+            assertThat(results).extracting(UserProvisioning.ProvisionResult::id).doesNotContainNull();
+            assertThat(entityManager.unwrap(org.hibernate.Session.class).getStatistics().getEntityCount()).isZero();
+        } finally {
+            TransactionSynchronizationManager.unbindResource(this.entityManagerFactory);
+            entityManager.close();
+        }
+        assertThat(this.userRepository.findUsernamesIn(drafts.stream()
+                .map(UserProvisioning.UserDraft::username).collect(Collectors.toSet()))).hasSize(10);
+    }
+
+    // Logs in and returns the id of the new session
+    private String login(String username) {
+        AtomicReference<String> sessionCookie = new AtomicReference<>();
+        client
+                .post()
+                .uri("/login")
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(BodyInserters.fromValue(new SessionRestController.LoginRequest(username, "password")))
+                .exchange()
+                .expectStatus().isOk()
+                .expectCookie().value("SESSION", sessionCookie::set);
+        return new String(Base64.getDecoder().decode(sessionCookie.get()));
+    }
+
+    // Reads the session from Redis below the caching and coalescing repositories
+    private Instant storedAccessTime(String sessionId) {
+        Session session = this.redisSessionRepository.findById(sessionId);
+        return session.getLastAccessedTime();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <S extends Session> void saveSession(Session session) {
+        ((FindByIndexNameSessionRepository<S>) this.sessionRepo).save((S) session);
+    }
+
     public void createUserIfNotExists(String username, String password, List<String> roles) {
         if (userRepository.countByUsername(username) == 0) {
             userRepository.save(User.builder()
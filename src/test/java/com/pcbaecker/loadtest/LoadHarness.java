@@ -0,0 +1,311 @@
+package com.pcbaecker.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.pcbaecker.StartApplication;
+import com.pcbaecker.domain.books.Book;
+import com.pcbaecker.domain.books.BookRepository;
+import com.pcbaecker.domain.users.User;
+import com.pcbaecker.domain.users.UserRepository;
+import com.pcbaecker.loadtest.OpenModelLoad.ScenarioResult;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.MediaType;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Boots the application against an embedded Redis server and an in-memory H2 database in PostgreSQL mode,
+// then runs every scenario with a fixed arrival rate and writes the latency percentiles as JSON.
+//
+//   mvn -Ploadtest verify -Dloadtest.scenarios=login:20,books:200 -Dloadtest.duration=PT30S
+//
+// create-book and import-books write new books as a publisher, one per request or loadtest.import-size per request.
+//
+// Spring properties can be passed as program arguments, e.g. --spring.threads.virtual.enabled=true.
+// With -Dloadtest.baseline=<result.json> the run fails when a p99 got worse than the tolerance allows
+// or a scenario has more errors than in the baseline.
+public class LoadHarness {
+
+    private static final String PASSWORD = "loadtest-password";
+    private static final String PUBLISHER = "loadtest-publisher";
+
+    public static void main(String[] args) throws Exception {
+        List<ScenarioConfig> scenarios = ScenarioConfig.parse(
+                System.getProperty("loadtest.scenarios", "login:20,books:200,book:200,sessions:100,delete-session:20"));
+        Duration duration = Duration.parse(System.getProperty("loadtest.duration", "PT20S"));
+        Duration warmup = Duration.parse(System.getProperty("loadtest.warmup", "PT5S"));
+        int users = Integer.getInteger("loadtest.users", 50);
+        int books = Integer.getInteger("loadtest.books", 1000);
+        int importSize = Integer.getInteger("loadtest.import-size", 100);
+        Path output = Path.of(System.getProperty("loadtest.output", "target/loadtest-result.json"));
+        String baseline = System.getProperty("loadtest.baseline");
+        double tolerance = Double.parseDouble(System.getProperty("loadtest.tolerance", "0.2"));
+
+        int redisPort = freePort();
+        RedisServer redis = new RedisServer(redisPort);
+        redis.start();
+        ConfigurableApplicationContext context = null;
+        List<String> regressions = List.of();
+        try {
+            // System properties win over application.properties, program arguments still win over both
+            Map.of(
+                    "server.port", "0",
+                    "spring.data.redis.host", "localhost",
+                    "spring.data.redis.port", String.valueOf(redisPort),
+                    "spring.datasource.url", "jdbc:h2:mem:loadtest;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH;DB_CLOSE_DELAY=-1",
+                    "spring.datasource.driver-class-name", "org.h2.Driver",
+                    "spring.datasource.username", "sa",
+                    "spring.datasource.password", "",
+                    // The full text index in schema.sql only exists in PostgreSQL
+                    "spring.sql.init.mode", "never",
+                    // All requests come from one IP, pass --app.security.login-throttle.enabled=true to measure it
+                    "app.security.login-throttle.enabled", "false"
+            ).forEach(System::setProperty);
+            context = new SpringApplicationBuilder(StartApplication.class).run(args);
+            seed(context, users, books);
+
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            LoadHarness harness = new LoadHarness("http://localhost:" + port, users, books, importSize);
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("virtualThreads", context.getEnvironment().getProperty("spring.threads.virtual.enabled", Boolean.class, false));
+            result.put("duration", duration.toString());
+            Map<String, Object> results = new LinkedHashMap<>();
+            for (ScenarioConfig scenario : scenarios) {
+                results.put(scenario.name(), harness.run(scenario, duration, warmup).toJson());
+            }
+            result.put("scenarios", results);
+
+            ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+            Files.createDirectories(output.toAbsolutePath().getParent());
+            objectMapper.writeValue(output.toFile(), result);
+            System.out.println(objectMapper.writeValueAsString(result));
+
+            if (baseline != null) {
+                regressions = compare(objectMapper.readTree(Path.of(baseline).toFile()),
+                        objectMapper.valueToTree(result), tolerance);
+                regressions.forEach(System.err::println);
+            }
+        } finally {
+            if (context != null) {
+                context.close();
+            }
+            redis.stop();
+        }
+        if (!regressions.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    private final String baseUrl;
+    private final int users;
+    private final int books;
+    private final int importSize;
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final List<String> cookies = new ArrayList<>();
+    private final String publisherCookie;
+
+    private LoadHarness(String baseUrl, int users, int books, int importSize) throws Exception {
+        this.baseUrl = baseUrl;
+        this.users = users;
+        this.books = books;
+        this.importSize = importSize;
+        // Every user gets one session that is used by all scenarios except login
+        for (int i = 0; i < users; i++) {
+            this.cookies.add(login(i));
+        }
+        this.publisherCookie = login(PUBLISHER);
+    }
+
+    private ScenarioResult run(ScenarioConfig scenario, Duration duration, Duration warmup) throws Exception {
+        AtomicInteger counter = new AtomicInteger();
+        Supplier<HttpRequest> requests = switch (scenario.name()) {
+            case "login" -> () -> loginRequest(counter.getAndIncrement() % this.users);
+            case "books" -> () -> get("/books?limit=20", randomCookie());
+            case "book" -> () -> get("/books/" + (ThreadLocalRandom.current().nextInt(this.books) + 1), randomCookie());
+            case "sessions" -> () -> get("/sessions", randomCookie());
+            case "delete-session" -> deleteSessionRequests(scenario.rate() * (duration.toSeconds() + warmup.toSeconds()));
+            case "create-book" -> () -> post("/books", MediaType.APPLICATION_JSON_VALUE,
+                    newBook("create-" + counter.getAndIncrement()));
+            case "import-books" -> () -> post("/books/bulk", MediaType.APPLICATION_NDJSON_VALUE,
+                    newBooks("import-" + counter.getAndIncrement()));
+            default -> throw new IllegalArgumentException("Unknown scenario " + scenario.name());
+        };
+        System.err.println("Running " + scenario.name() + " with " + scenario.rate() + " requests per second");
+        return new OpenModelLoad(this.client, scenario.rate()).run(requests, duration, warmup);
+    }
+
+    // Every request deletes another session, so we log in that many times up front and collect the hashed ids
+    private Supplier<HttpRequest> deleteSessionRequests(long count) throws Exception {
+        ConcurrentLinkedQueue<HttpRequest> requests = new ConcurrentLinkedQueue<>();
+        long perUser = (count + this.users - 1) / this.users;
+        ObjectMapper objectMapper = new ObjectMapper();
+        for (int user = 0; user < this.users; user++) {
+            for (int i = 0; i < perUser; i++) {
+                login(user);
+            }
+            String cookie = this.cookies.get(user);
+            HttpResponse<String> response = this.client.send(get("/sessions", cookie), HttpResponse.BodyHandlers.ofString());
+            for (JsonNode session : objectMapper.readTree(response.body())) {
+                if (!session.get("isCurrent").asBoolean()) {
+                    requests.add(HttpRequest.newBuilder(URI.create(this.baseUrl + "/sessions/" + session.get("id").asText()))
+                            .header("Cookie", cookie)
+                            .DELETE()
+                            .build());
+                }
+            }
+        }
+        return requests::poll;
+    }
+
+    private String login(int user) throws IOException, InterruptedException {
+        return login(username(user));
+    }
+
+    private String login(String username) throws IOException, InterruptedException {
+        HttpResponse<String> response = this.client.send(loginRequest(username), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Login failed with " + response.statusCode() + ": " + response.body());
+        }
+        String setCookie = response.headers().firstValue("Set-Cookie").orElseThrow();
+        return setCookie.substring(0, setCookie.indexOf(';'));
+    }
+
+    private HttpRequest loginRequest(int user) {
+        return loginRequest(username(user));
+    }
+
+    private HttpRequest loginRequest(String username) {
+        return HttpRequest.newBuilder(URI.create(this.baseUrl + "/login"))
+                .header("Content-Type", "application/json")
+                .header("User-Agent", "loadtest")
+                .POST(HttpRequest.BodyPublishers.ofString(
+                        "{\"username\":\"" + username + "\",\"password\":\"" + PASSWORD + "\"}"))
+                .build();
+    }
+
+    private HttpRequest post(String path, String contentType, String body) {
+        return HttpRequest.newBuilder(URI.create(this.baseUrl + path))
+                .header("Cookie", this.publisherCookie)
+                .header("Content-Type", contentType)
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    // Titles are unique, so every book gets the name of its request
+    private static String newBook(String title) {
+        return "{\"title\":\"" + title + "\",\"author\":\"Loadtest author\"}";
+    }
+
+    private String newBooks(String prefix) {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < this.importSize; i++) {
+            body.append(newBook(prefix + "-" + i)).append('\n');
+        }
+        return body.toString();
+    }
+
+    private HttpRequest get(String path, String cookie) {
+        return HttpRequest.newBuilder(URI.create(this.baseUrl + path))
+                .header("Cookie", cookie)
+                .GET()
+                .build();
+    }
+
+    private String randomCookie() {
+        return this.cookies.get(ThreadLocalRandom.current().nextInt(this.cookies.size()));
+    }
+
+    private static String username(int user) {
+        return "loadtest-" + user;
+    }
+
+    private static void seed(ConfigurableApplicationContext context, int users, int books) {
+        // One hash for everybody, otherwise seeding takes longer than the load test
+        String password = context.getBean(PasswordEncoder.class).encode(PASSWORD);
+        List<User> newUsers = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            newUsers.add(User.builder()
+                    .username(username(i))
+                    .password(password)
+                    .roles(new ArrayList<>(List.of("ROLE_USER")))
+                    .createdAt(LocalDateTime.now())
+                    .updatedAt(LocalDateTime.now())
+                    .build());
+        }
+        newUsers.add(User.builder()
+                .username(PUBLISHER)
+                .password(password)
+                .roles(new ArrayList<>(List.of("ROLE_PUBLISHER")))
+                .createdAt(LocalDateTime.now())
+                .updatedAt(LocalDateTime.now())
+                .build());
+        context.getBean(UserRepository.class).saveAll(newUsers);
+        List<Book> newBooks = new ArrayList<>(books);
+        for (int i = 0; i < books; i++) {
+            newBooks.add(new Book(null, "Book " + i, "Author " + (i % 100), LocalDateTime.now(), LocalDateTime.now()));
+        }
+        context.getBean(BookRepository.class).saveAll(newBooks);
+    }
+
+    private static List<String> compare(JsonNode baseline, JsonNode current, double tolerance) {
+        List<String> regressions = new ArrayList<>();
+        current.get("scenarios").fields().forEachRemaining(entry -> {
+            JsonNode before = baseline.path("scenarios").path(entry.getKey());
+            if (before.isMissingNode()) {
+                return;
+            }
+            double p99Before = before.path("latencyMs").path("p99").asDouble();
+            double p99Now = entry.getValue().path("latencyMs").path("p99").asDouble();
+            if (p99Now > p99Before * (1 + tolerance)) {
+                regressions.add(entry.getKey() + ": p99 " + p99Now + " ms, baseline " + p99Before + " ms");
+            }
+            long errorsBefore = before.path("errors").asLong();
+            long errorsNow = entry.getValue().path("errors").asLong();
+            if (errorsNow > errorsBefore) {
+                regressions.add(entry.getKey() + ": " + errorsNow + " errors, baseline " + errorsBefore);
+            }
+        });
+        return regressions;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    record ScenarioConfig(
+            String name,
+            int rate
+    ) {
+        static List<ScenarioConfig> parse(String value) {
+            List<ScenarioConfig> scenarios = new ArrayList<>();
+            for (String scenario : value.split(",")) {
+                String[] parts = scenario.trim().split(":");
+                scenarios.add(new ScenarioConfig(parts[0], Integer.parseInt(parts[1])));
+            }
+            return scenarios;
+        }
+    }
+}
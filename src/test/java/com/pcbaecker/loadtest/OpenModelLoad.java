@@ -0,0 +1,115 @@
+package com.pcbaecker.loadtest;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+// Sends requests at a fixed rate no matter how fast the server answers. The latency is measured from the moment the
+// request was due, so a server that stalls is charged for every request that queued up behind the stall.
+// The throughput is what the server got done: successful responses that arrived within the measurement window.
+class OpenModelLoad {
+
+    private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(30);
+
+    private final HttpClient client;
+    private final int rate;
+
+    OpenModelLoad(HttpClient client, int rate) {
+        this.client = client;
+        this.rate = rate;
+    }
+
+    ScenarioResult run(Supplier<HttpRequest> requests, Duration duration, Duration warmup) throws InterruptedException {
+        Histogram latencies = new ConcurrentHistogram(3);
+        LongAdder errors = new LongAdder();
+        LongAdder completed = new LongAdder();
+        List<CompletableFuture<?>> measured = new ArrayList<>();
+        long interval = TimeUnit.SECONDS.toNanos(1) / this.rate;
+        long start = System.nanoTime();
+        long measureFrom = start + warmup.toNanos();
+        long end = measureFrom + duration.toNanos();
+
+        for (long i = 0; ; i++) {
+            long due = start + i * interval;
+            if (due >= end) {
+                break;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            HttpRequest request = requests.get();
+            if (request == null) {
+                break;
+            }
+            CompletableFuture<HttpResponse<Void>> response = this.client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((r, e) -> {
+                        long now = System.nanoTime();
+                        if (e == null && r.statusCode() < 400 && now >= measureFrom && now < end) {
+                            completed.increment();
+                        }
+                    });
+            if (due >= measureFrom) {
+                measured.add(response.whenComplete((r, e) -> {
+                    latencies.recordValue(System.nanoTime() - due);
+                    if (e != null || r.statusCode() >= 400) {
+                        errors.increment();
+                    }
+                }));
+            }
+        }
+
+        try {
+            CompletableFuture.allOf(measured.toArray(CompletableFuture[]::new))
+                    .get(DRAIN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            // Failed requests are already counted, requests that never came back are counted here
+        }
+        long unfinished = measured.stream().filter(f -> !f.isDone()).count();
+        return new ScenarioResult(this.rate, measured.size(), completed.sum(), errors.sum() + unfinished, duration, latencies);
+    }
+
+    record ScenarioResult(
+            int rate,
+            long requests,
+            long completed,
+            long errors,
+            Duration duration,
+            Histogram latencies
+    ) {
+        Map<String, Object> toJson() {
+            Map<String, Object> latencyMs = new LinkedHashMap<>();
+            latencyMs.put("p50", millis(this.latencies.getValueAtPercentile(50)));
+            latencyMs.put("p90", millis(this.latencies.getValueAtPercentile(90)));
+            latencyMs.put("p99", millis(this.latencies.getValueAtPercentile(99)));
+            latencyMs.put("p999", millis(this.latencies.getValueAtPercentile(99.9)));
+            latencyMs.put("max", millis(this.latencies.getMaxValue()));
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("targetRate", this.rate);
+            json.put("requests", this.requests);
+            json.put("throughput", (double) this.completed / this.duration.toMillis() * 1000);
+            json.put("errors", this.errors);
+            json.put("latencyMs", latencyMs);
+            return json;
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1_000_000.0;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.pcbaecker.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Starts the JVM build and the native build of the application a few times each and measures how long it takes
+// until the first HTTP response, and how much memory the process holds right after that.
+//
+//   mvn -Pnative native:compile
+//   mvn -Pstartup verify -Dstartup.runs=5
+//
+// Redis is embedded, the database is the one from DATABASE_URL, DATABASE_USER and DATABASE_PASSWORD, like in
+// production, because the native image does not contain H2. Results go to target/startup-result.json.
+public class StartupBenchmark {
+
+    private static final Duration STARTUP_TIMEOUT = Duration.ofMinutes(2);
+
+    public static void main(String[] args) throws Exception {
+        int runs = Integer.getInteger("startup.runs", 5);
+        Path jar = Path.of(System.getProperty("startup.jar"));
+        Path executable = Path.of(System.getProperty("startup.native"));
+        Path output = Path.of(System.getProperty("startup.output", "target/startup-result.json"));
+        if (System.getenv("DATABASE_URL") == null) {
+            throw new IllegalStateException("DATABASE_URL, DATABASE_USER and DATABASE_PASSWORD have to point to a PostgreSQL database");
+        }
+
+        Map<String, List<String>> builds = new LinkedHashMap<>();
+        builds.put("jvm", List.of(Path.of(System.getProperty("java.home"), "bin", "java").toString(), "-jar", jar.toString()));
+        if (Files.isExecutable(executable)) {
+            builds.put("native", List.of(executable.toString()));
+        } else {
+            System.err.println("No native executable at " + executable + ", run mvn -Pnative native:compile first");
+        }
+
+        int redisPort = freePort();
+        RedisServer redis = new RedisServer(redisPort);
+        redis.start();
+        Map<String, Object> result = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, List<String>> build : builds.entrySet()) {
+                List<Run> measured = new ArrayList<>();
+                for (int i = 0; i < runs; i++) {
+                    Run run = start(build.getValue(), redisPort, output.toAbsolutePath().getParent().resolve("startup-" + build.getKey() + "-" + i + ".log"));
+                    System.err.println(build.getKey() + " run " + i + ": " + run.startupMillis() + " ms, " + run.rssKb() / 1024 + " MB");
+                    measured.add(run);
+                }
+                result.put(build.getKey(), summary(measured));
+            }
+        } finally {
+            redis.stop();
+        }
+
+        ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        Files.createDirectories(output.toAbsolutePath().getParent());
+        objectMapper.writeValue(output.toFile(), result);
+        System.out.println(objectMapper.writeValueAsString(result));
+    }
+
+    // The clock starts before the process is launched and stops at the first HTTP response of any status,
+    // that is when the application can take traffic
+    private static Run start(List<String> command, int redisPort, Path log) throws Exception {
+        int port = freePort();
+        List<String> commandLine = new ArrayList<>(command);
+        commandLine.add("--server.port=" + port);
+        commandLine.add("--spring.data.redis.host=localhost");
+        commandLine.add("--spring.data.redis.port=" + redisPort);
+        Files.createDirectories(log.getParent());
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(1)).build();
+        HttpRequest health = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/actuator/health")).GET().build();
+
+        long started = System.nanoTime();
+        Process process = new ProcessBuilder(commandLine)
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+        try {
+            while (true) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException("Application exited with " + process.exitValue() + ", see " + log);
+                }
+                if (System.nanoTime() - started > STARTUP_TIMEOUT.toNanos()) {
+                    throw new IllegalStateException("Application did not answer within " + STARTUP_TIMEOUT + ", see " + log);
+                }
+                try {
+                    client.send(health, HttpResponse.BodyHandlers.discarding());
+                    break;
+                } catch (ConnectException e) {
+                    Thread.sleep(10);
+                }
+            }
+            long startupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            return new Run(startupMillis, rssKb(process.pid()));
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    // Resident set size as the kernel reports it, only available on Linux
+    private static long rssKb(long pid) throws IOException {
+        Path status = Path.of("/proc", String.valueOf(pid), "status");
+        if (!Files.exists(status)) {
+            return -1;
+        }
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("\\D", ""));
+            }
+        }
+        return -1;
+    }
+
+    private static Map<String, Object> summary(List<Run> runs) {
+        long[] startup = runs.stream().mapToLong(Run::startupMillis).sorted().toArray();
+        long[] rss = runs.stream().mapToLong(Run::rssKb).sorted().toArray();
+        Map<String, Object> startupMs = new LinkedHashMap<>();
+        startupMs.put("min", startup[0]);
+        startupMs.put("median", startup[startup.length / 2]);
+        startupMs.put("max", startup[startup.length - 1]);
+        Map<String, Object> rssMb = new LinkedHashMap<>();
+        rssMb.put("min", rss[0] / 1024.0);
+        rssMb.put("median", rss[rss.length / 2] / 1024.0);
+        rssMb.put("max", rss[rss.length - 1] / 1024.0);
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("runs", runs.size());
+        json.put("startupMs", startupMs);
+        json.put("rssMb", rssMb);
+        return json;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    record Run(
+            long startupMillis,
+            long rssKb
+    ) {
+    }
+}